@@ -0,0 +1,98 @@
+package ru.truba.touchgallery.GalleryWidget;
+
+import android.os.SystemClock;
+import ru.truba.touchgallery.TouchView.BandwidthMeter;
+
+/**
+ * Preloads according to how fast the pages are swiped and how fast images download.
+ *
+ * <ul>
+ *     <li>When scrubbing fast, only the pages ahead are preloaded, at half size, and
+ *     the full size load waits for the swiping to settle.</li>
+ *     <li>Otherwise the current page is upgraded at once.</li>
+ *     <li>The number of pages kept around follows the measured bandwidth.</li>
+ * </ul>
+ */
+public class AdaptivePreloadPolicy implements PreloadPolicy {
+    /** Pages swiped faster than this apart are scrubbing, in ms. */
+    private static final long SCRUB_INTERVAL = 500;
+    /** Weight of a new interval in the average. */
+    private static final float SMOOTHING = 0.5f;
+    private static final long SETTLE_DELAY = 600;
+
+    /** Bytes per second. */
+    private static final float FAST_NETWORK = 1024 * 1024;
+    private static final float SLOW_NETWORK = 128 * 1024;
+
+    private final int maxOffscreenPageLimit;
+
+    private int lastPosition = -1;
+    private long lastTime;
+    /** Average time between page changes, ms. */
+    private float interval = Float.MAX_VALUE;
+    /** 1 forward, -1 backward. */
+    private int direction = 1;
+
+    public AdaptivePreloadPolicy() {
+        this(3);
+    }
+
+    /**
+     * @param maxOffscreenPageLimit pages kept on each side on a fast network.
+     */
+    public AdaptivePreloadPolicy(int maxOffscreenPageLimit) {
+        this.maxOffscreenPageLimit = Math.max(1, maxOffscreenPageLimit);
+    }
+
+    @Override
+    public void onPageSelected(int position) {
+        long now = SystemClock.uptimeMillis();
+        if (lastPosition >= 0 && position != lastPosition) {
+            long elapsed = now - lastTime;
+            // one slow swipe is enough to stop scrubbing
+            if (interval == Float.MAX_VALUE || elapsed > SCRUB_INTERVAL)
+                interval = elapsed;
+            else
+                interval += SMOOTHING * (elapsed - interval);
+            direction = position > lastPosition ? 1 : -1;
+        }
+        lastPosition = position;
+        lastTime = now;
+    }
+
+    @Override
+    public int getOffscreenPageLimit() {
+        float bandwidth = BandwidthMeter.getInstance().getBytesPerSecond();
+        if (bandwidth == 0 || bandwidth >= FAST_NETWORK)
+            return maxOffscreenPageLimit;
+        if (bandwidth >= SLOW_NETWORK)
+            return Math.max(1, maxOffscreenPageLimit - 1);
+        return 1;
+    }
+
+    @Override
+    public boolean shouldPreload(int distance) {
+        if (Math.abs(distance) > getOffscreenPageLimit())
+            return false;
+        // don't spend the bandwidth behind
+        return !isScrubbing() || distance * direction > 0;
+    }
+
+    @Override
+    public float getPreloadScale() {
+        float bandwidth = BandwidthMeter.getInstance().getBytesPerSecond();
+        if (isScrubbing() || (bandwidth > 0 && bandwidth < SLOW_NETWORK))
+            return 0.5f;
+        return 1;
+    }
+
+    @Override
+    public long getUpgradeDelay() {
+        return isScrubbing() ? SETTLE_DELAY : 0;
+    }
+
+    public boolean isScrubbing() {
+        return interval < SCRUB_INTERVAL
+                && SystemClock.uptimeMillis() - lastTime < SETTLE_DELAY;
+    }
+}
@@ -0,0 +1,251 @@
+package ru.truba.touchgallery.GalleryWidget;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.StatFs;
+import android.util.Log;
+import ru.truba.touchgallery.TouchView.BitmapMemoryCache;
+import ru.truba.touchgallery.TouchView.ImageDiskCache;
+import ru.truba.touchgallery.TouchView.ImageDownloader;
+import ru.truba.touchgallery.TouchView.ImageLoaderScheduler;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Downloads the images beyond the pages of the pager into {@link ImageDiskCache}, without
+ * decoding them, so swiping further shows them from the disk instead of waiting for the
+ * network.
+ *
+ * <ul>
+ *     <li>The window is taken mostly in the swipe direction, see {@link #setWindow(int, int)}.</li>
+ *     <li>One image at a time, behind the loads of the pages, and read under its own
+ *     bandwidth cap, see {@link #setMaxBytesPerSecond(long)}. A fresh cached image is
+ *     skipped by the download job, it costs nothing.</li>
+ *     <li>Paused on a metered network, which needs the ACCESS_NETWORK_STATE permission,
+ *     or when the storage is low.</li>
+ * </ul>
+ *
+ * <p>Only accessed on the main thread, the network and the storage are checked on the
+ * network pool.</p>
+ */
+public class DiskPrefetcher {
+    private static final String TAG = "DiskPrefetcher";
+
+    /** Don't fill up the storage below this. */
+    private static final long MIN_FREE_SPACE = 32 * 1024 * 1024;
+
+    private final Context mContext;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private int ahead = 5;
+    private int behind = 1;
+    /** 0 for no cap. */
+    private long maxBytesPerSecond = 256 * 1024;
+    private boolean allowMetered = false;
+
+    private List<URL> urls;
+    private int currentPosition;
+    /** Positions still to fetch, nearest first. */
+    private final ArrayList<Integer> pending = new ArrayList<>();
+    private int fetchingPosition = -1;
+    private ImageDownloader.Subscription subscription;
+    /** The network and the storage are being checked. */
+    private boolean checking;
+    /** Result of the last check, done again on the next page change. */
+    private boolean checked, allowed;
+
+    public DiskPrefetcher(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * @param ahead images fetched in the swipe direction, past the pages of the pager.
+     *              0 to turn prefetching off.
+     * @param behind images fetched in the other direction.
+     */
+    public void setWindow(int ahead, int behind) {
+        this.ahead = Math.max(0, ahead);
+        this.behind = Math.max(0, behind);
+    }
+
+    /**
+     * Download rate of the prefetching, its reads are slowed down to keep under it.
+     * @param bytesPerSecond 0 for no cap.
+     */
+    public void setMaxBytesPerSecond(long bytesPerSecond) {
+        this.maxBytesPerSecond = Math.max(0, bytesPerSecond);
+    }
+
+    /** Prefetch on a metered network too. Off by default. */
+    public void setAllowMetered(boolean allowMetered) {
+        this.allowMetered = allowMetered;
+    }
+
+    /**
+     * The current page has changed, prefetch the window around it.
+     * @param direction 1 if swiping forward, -1 backward.
+     * @param pageLimit pages loaded by the pager on each side, skipped.
+     */
+    public void update(List<URL> urls, int position, int direction, int pageLimit) {
+        this.urls = urls;
+        this.currentPosition = position;
+        checked = false;
+        pending.clear();
+        for (int i = 1; i <= Math.max(ahead, behind); ++i) {
+            if (i <= ahead)
+                addPending(position + direction * (pageLimit + i));
+            if (i <= behind)
+                addPending(position - direction * (pageLimit + i));
+        }
+        if (subscription != null) {
+            int index = pending.indexOf(fetchingPosition);
+            if (index >= 0) {
+                // keep going
+                pending.remove(index);
+                subscription.setPriority(priorityOf(fetchingPosition));
+            } else {
+                // left the window
+                cancelFetch();
+            }
+        }
+        fetchNext();
+    }
+
+    /** Stop prefetching, e.g. when the gallery is closed. */
+    public void cancel() {
+        pending.clear();
+        cancelFetch();
+    }
+
+    private void addPending(int position) {
+        if (position >= 0 && position < urls.size())
+            pending.add(position);
+    }
+
+    /** Same as the pages, the distance from the current one. */
+    private int priorityOf(int position) {
+        return Math.abs(position - currentPosition);
+    }
+
+    private void cancelFetch() {
+        if (subscription != null) {
+            subscription.cancel();
+            subscription = null;
+            fetchingPosition = -1;
+        }
+    }
+
+    private void fetchNext() {
+        if (subscription != null || checking || pending.isEmpty())
+            return;
+        if (!checked) {
+            check();
+            return;
+        }
+        if (!allowed) {
+            // tried again on the next page change
+            pending.clear();
+            return;
+        }
+        while (!pending.isEmpty()) {
+            final int position = pending.remove(0);
+            URL url = urls.get(position);
+            if (url.getProtocol().equals("file"))
+                continue;
+            fetchingPosition = position;
+            // a fresh cached one is left alone by the job
+            subscription = ImageDownloader.getInstance(mContext).prefetch(url, priorityOf(position),
+                    maxBytesPerSecond, new ImageDownloader.Listener() {
+                        @Override
+                        public void onProgress(float progressValue, long bytesLoaded, long bytesTotal) {
+                        }
+
+                        @Override
+                        public void onPreview(Bitmap preview, int rotation) {
+                            // not asked for
+                            BitmapMemoryCache.getInstance().release(preview);
+                        }
+
+                        @Override
+                        public void onComplete(File file) {
+                            subscription = null;
+                            fetchingPosition = -1;
+                            fetchNext();
+                        }
+                    });
+            return;
+        }
+    }
+
+    /** Check the network and the storage on the network pool, then go on. */
+    private void check() {
+        checking = true;
+        final boolean allowMetered = this.allowMetered;
+        ImageLoaderScheduler.getInstance().getNetworkExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean allowed = (allowMetered || !isMetered()) && !isStorageLow();
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        checking = false;
+                        checked = true;
+                        DiskPrefetcher.this.allowed = allowed;
+                        fetchNext();
+                    }
+                });
+            }
+        });
+    }
+
+    private boolean isMetered() {
+        ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+                return isActiveNetworkMetered(cm);
+            NetworkInfo info = cm.getActiveNetworkInfo();
+            // same as the platform's guess
+            return info == null || (info.getType() != ConnectivityManager.TYPE_WIFI
+                    && info.getType() != ConnectivityManager.TYPE_ETHERNET);
+        } catch (SecurityException e) {
+            Log.w(TAG, "no ACCESS_NETWORK_STATE permission, not prefetching");
+            return true;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static boolean isActiveNetworkMetered(ConnectivityManager cm) {
+        return cm.isActiveNetworkMetered();
+    }
+
+    @SuppressWarnings("deprecation")
+    private boolean isStorageLow() {
+        File dir = ImageDiskCache.getInstance(mContext).getDirectory();
+        while (dir != null && !dir.exists())
+            dir = dir.getParentFile();
+        if (dir == null)
+            return false;
+        StatFs stat = new StatFs(dir.getPath());
+        long available = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                ? getAvailableBytes(stat)
+                : (long) stat.getAvailableBlocks() * stat.getBlockSize();
+        if (available < MIN_FREE_SPACE) {
+            Log.d(TAG, "storage low, not prefetching");
+            return true;
+        }
+        return false;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static long getAvailableBytes(StatFs stat) {
+        return stat.getAvailableBytes();
+    }
+}
@@ -33,7 +33,9 @@ import ru.truba.touchgallery.TouchView.TouchImageView;
  */
 public class GalleryViewPager extends ViewPager {
 
-    PointF last;
+    final PointF last = new PointF();
+    /** Returned by handleMotionEvent, reused not to allocate on every move. */
+    private final float[] difference = new float[2];
     public TouchImageView mCurrentView;
 
     /**
@@ -52,12 +54,13 @@ public class GalleryViewPager extends ViewPager {
     private float[] handleMotionEvent(MotionEvent event) {
         switch (event.getAction() & MotionEvent.ACTION_MASK) {
             case MotionEvent.ACTION_DOWN:
-                last = new PointF(event.getX(0), event.getY(0));
+                last.set(event.getX(0), event.getY(0));
                 break;
             case MotionEvent.ACTION_MOVE:
             case MotionEvent.ACTION_UP:
-                PointF curr = new PointF(event.getX(0), event.getY(0));
-                return new float[]{curr.x - last.x, curr.y - last.y};
+                difference[0] = event.getX(0) - last.x;
+                difference[1] = event.getY(0) - last.y;
+                return difference;
 
         }
         return null;
@@ -48,6 +48,14 @@ public class InfinityUrlAdapter extends BasePagerAdapter {
     return iv;
     }
 
+    @Override
+    public void destroyItem(ViewGroup collection, int position, Object view) {
+        super.destroyItem(collection, position, view);
+        // leave the shared download, and give back the bitmap
+        ((UrlTouchImageView) view).cancelLoading();
+        ((UrlTouchImageView) view).recycleBmp();
+    }
+
     /**
      * Set Scaletype for ImageView
      * @param scaletype
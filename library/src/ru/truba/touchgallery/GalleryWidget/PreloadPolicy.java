@@ -0,0 +1,27 @@
+package ru.truba.touchgallery.GalleryWidget;
+
+/**
+ * Decides what {@link UrlPagerAdapter} loads besides the current page, and when the
+ * current page is loaded at full size.
+ *
+ * @see AdaptivePreloadPolicy
+ */
+public interface PreloadPolicy {
+    /** The current page has changed. */
+    void onPageSelected(int position);
+
+    /** Pages kept on each side of the current one, see ViewPager#setOffscreenPageLimit. */
+    int getOffscreenPageLimit();
+
+    /**
+     * @param distance from the current page, negative for the pages before it.
+     * @return false to leave the page empty until the swiping settles.
+     */
+    boolean shouldPreload(int distance);
+
+    /** Factor in (0, 1] applied to the preload size limit of the other pages. */
+    float getPreloadScale();
+
+    /** Delay in ms before the current page is loaded at full size. */
+    long getUpgradeDelay();
+}
@@ -20,6 +20,7 @@ package ru.truba.touchgallery.GalleryWidget;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Message;
+import android.util.SparseArray;
 import android.view.View;
 import android.view.ViewGroup;
 import ru.truba.touchgallery.TouchView.UrlTouchImageView;
@@ -33,6 +34,10 @@ import java.util.List;
 
 /**
  Class wraps URLs to adapter, then it instantiates {@link ru.truba.touchgallery.TouchView.UrlTouchImageView} objects to paging up through them.
+
+ <p>Pages load by their distance from the current one: its full size image first, then the
+ adjacent previews, then the farther ones. The queued loads are ranked again on every page
+ change, and the ones of destroyed pages are cancelled.</p>
  */
 public class UrlPagerAdapter extends BasePagerAdapter {
 
@@ -42,6 +47,9 @@ public class UrlPagerAdapter extends BasePagerAdapter {
      */
     private static final int MSG_LOAD_LARGE_IMG = 1;
 
+    /** Destroyed pages kept for reuse, a swipe destroys one and creates one. */
+    private static final int MAX_RECYCLED_VIEWS = 3;
+
     // image size limit
     int maxWidth = 1280;
     int maxHeight = 720;
@@ -52,6 +60,18 @@ public class UrlPagerAdapter extends BasePagerAdapter {
 
     protected final List<URL> mUrls;
 
+    /** Reset pages, taken by {@link #instantiateItem} before creating new ones. */
+    private final ArrayList<UrlTouchImageView> recycledViews = new ArrayList<>();
+
+    protected PreloadPolicy preloadPolicy = new AdaptivePreloadPolicy();
+    /** Downloads the images past the pages of the pager. */
+    protected final DiskPrefetcher diskPrefetcher;
+    /** Pages not preloaded while swiping, by position, loaded once it settles. */
+    private final SparseArray<UrlTouchImageView> deferredPages = new SparseArray<>();
+    /** Instantiated pages, by position. */
+    private final SparseArray<UrlTouchImageView> livePages = new SparseArray<>();
+    private GalleryViewPager pager;
+
     private Handler handler = new MyHandler(this);
 
     private static class MyHandler extends Handler {
@@ -71,6 +91,7 @@ public class UrlPagerAdapter extends BasePagerAdapter {
                                 adapter.mUrls.get(msg.arg1),
                                 adapter.maxWidth,
                                 adapter.maxHeight, true);
+                        adapter.onSettled();
                     }
                     return;
             }
@@ -87,12 +108,14 @@ public class UrlPagerAdapter extends BasePagerAdapter {
 	{
         super(context, urls2literals(urls));
         mUrls = urls;
+        diskPrefetcher = new DiskPrefetcher(context);
 	}
 
     public UrlPagerAdapter(Context context, List<String> urls)
     {
         super(context, urls);
         mUrls = literals2urls(urls);
+        diskPrefetcher = new DiskPrefetcher(context);
     }
 
     private static List<String> urls2literals(List<URL> urls) {
@@ -130,10 +153,74 @@ public class UrlPagerAdapter extends BasePagerAdapter {
         maxPreloadHeight = preloadHeight;
     }
 
+    public PreloadPolicy getPreloadPolicy() {
+        return preloadPolicy;
+    }
+
+    public void setPreloadPolicy(PreloadPolicy policy) {
+        preloadPolicy = policy;
+    }
+
+    /** To configure the prefetching, or {@link DiskPrefetcher#cancel()} it. */
+    public DiskPrefetcher getDiskPrefetcher() {
+        return diskPrefetcher;
+    }
+
+    private int getPreloadWidth() {
+        return (int) (maxPreloadWidth * preloadPolicy.getPreloadScale());
+    }
+
+    private int getPreloadHeight() {
+        return (int) (maxPreloadHeight * preloadPolicy.getPreloadScale());
+    }
+
+    /**
+     * The current page is loaded at full size, load the pages deferred meanwhile, and
+     * apply the page limit of the policy.
+     */
+    private void onSettled() {
+        for (int i = deferredPages.size() - 1; i >= 0; --i) {
+            int position = deferredPages.keyAt(i);
+            if (preloadPolicy.shouldPreload(position - mCurrentPosition)) {
+                deferredPages.valueAt(i).setUrl(mUrls.get(position), getPreloadWidth(), getPreloadHeight(), false);
+                deferredPages.removeAt(i);
+            }
+        }
+        // not from setPrimaryItem, the pager is populating then
+        int limit = preloadPolicy.getOffscreenPageLimit();
+        if (pager != null && pager.getOffscreenPageLimit() != limit)
+            pager.setOffscreenPageLimit(limit);
+    }
+
+    /** Load priority of a page, the distance from the current one. */
+    private static int priorityOf(int position, int currentPosition) {
+        return currentPosition < 0 ? 0 : Math.abs(position - currentPosition);
+    }
+
+    /** Rank the loads of all the pages by their distance from the new current one. */
+    private void rankPages(int currentPosition) {
+        for (int i = 0; i < livePages.size(); ++i) {
+            livePages.valueAt(i).setLoadPriority(priorityOf(livePages.keyAt(i), currentPosition));
+        }
+    }
+
     @Override
     public void setPrimaryItem(ViewGroup container, int position, Object object) {
+        pager = (GalleryViewPager) container;
+        if (mCurrentPosition != position) {
+            preloadPolicy.onPageSelected(position);
+            // loaded at full size below, a preload by onSettled() would shrink it
+            deferredPages.remove(position);
+            rankPages(position);
+            // the pages the pager keeps, whatever the policy asks for
+            diskPrefetcher.update(mUrls, position, position >= mCurrentPosition ? 1 : -1,
+                    pager.getOffscreenPageLimit());
+        }
         if (currUrlTouchImageView != null && mCurrentPosition != position) {
-            currUrlTouchImageView.setUrl(mUrls.get(mCurrentPosition), maxPreloadWidth, maxPreloadHeight, false);
+            currUrlTouchImageView.setUrl(mUrls.get(mCurrentPosition), getPreloadWidth(), getPreloadHeight(), false);
+        }
+        if (currUrlTouchImageView != null && currUrlTouchImageView != object) {
+            currUrlTouchImageView.getImageView().setPrimary(false);
         }
 
         // need to load large image?
@@ -144,35 +231,60 @@ public class UrlPagerAdapter extends BasePagerAdapter {
             msg.obj = object;
             msg.arg1 = position;
             handler.removeMessages(MSG_LOAD_LARGE_IMG);
-            handler.sendMessageDelayed(msg, 400);
+            handler.sendMessageDelayed(msg, preloadPolicy.getUpgradeDelay());
         }
 
         super.setPrimaryItem(container, position, object);
         ((GalleryViewPager)container).mCurrentView = ((UrlTouchImageView)object).getImageView();
         currUrlTouchImageView = (UrlTouchImageView)object;
+        currUrlTouchImageView.getImageView().setPrimary(true);
     }
 
     @Override
     public void destroyItem(ViewGroup collection, int position, Object view) {
         collection.removeView((View) view);
-        if (view instanceof UrlTouchImageView)
-            ((UrlTouchImageView)view).recycleBmp();
+        if (view instanceof UrlTouchImageView) {
+            UrlTouchImageView iv = (UrlTouchImageView) view;
+            // it may show another position soon
+            handler.removeMessages(MSG_LOAD_LARGE_IMG, iv);
+            deferredPages.remove(position);
+            if (livePages.get(position) == iv)
+                livePages.remove(position);
+            if (iv == currUrlTouchImageView)
+                currUrlTouchImageView = null;
+            // the loading is cancelled, the bitmaps and decoders are given back
+            iv.reset();
+            if (recycledViews.size() < MAX_RECYCLED_VIEWS)
+                recycledViews.add(iv);
+        }
+    }
+
+    /** A recycled page, or a new one. */
+    private UrlTouchImageView obtainView() {
+        if (!recycledViews.isEmpty())
+            return recycledViews.remove(recycledViews.size() - 1);
+        UrlTouchImageView iv = new UrlTouchImageView(mContext);
+        iv.setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+        return iv;
     }
 
     @Override
     public Object instantiateItem(ViewGroup collection, final int position){
-        final UrlTouchImageView iv = new UrlTouchImageView(mContext);
+        final UrlTouchImageView iv = obtainView();
+        livePages.put(position, iv);
+        iv.setLoadPriority(priorityOf(position, mCurrentPosition));
         if (position == mCurrentPosition) {
             Message msg = new Message();
             msg.what = MSG_LOAD_LARGE_IMG;
             msg.obj = iv;
             msg.arg1 = position;
             handler.removeMessages(MSG_LOAD_LARGE_IMG);
-            handler.sendMessageDelayed(msg, 300);
+            handler.sendMessageDelayed(msg, preloadPolicy.getUpgradeDelay());
+        } else if (mCurrentPosition < 0 || preloadPolicy.shouldPreload(position - mCurrentPosition)) {
+            iv.setUrl(mUrls.get(position), getPreloadWidth(), getPreloadHeight(), false);
         } else {
-            iv.setUrl(mUrls.get(position), maxPreloadWidth, maxPreloadHeight, false);
+            deferredPages.put(position, iv);
         }
-        iv.setLayoutParams(new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
 
         collection.addView(iv, 0);
         return iv;
@@ -15,6 +15,10 @@ import android.view.Window;
 import android.widget.Toast;
 import ru.truba.touchgallery.GalleryWidget.BasePagerAdapter;
 import ru.truba.touchgallery.GalleryWidget.GalleryViewPager;
+import ru.truba.touchgallery.TouchView.ImageDiskCache;
+import ru.truba.touchgallery.TouchView.ImageLoaderScheduler;
+import ru.truba.touchgallery.TouchView.ImageMetadata;
+import ru.truba.touchgallery.TouchView.PriorityRunnable;
 import ru.truba.touchgallery.TouchView.UrlTouchImageView;
 
 import java.io.*;
@@ -117,7 +121,7 @@ public class TouchGalleryActivity extends ActionBarActivity
         });
 
         mViewPager = (GalleryViewPager)findViewById(R.id.viewer);
-        mViewPager.setOffscreenPageLimit(3);
+        mViewPager.setOffscreenPageLimit(pagerAdapter.getPreloadPolicy().getOffscreenPageLimit());
         mViewPager.setAdapter(pagerAdapter);
         mViewPager.setCurrentItem(position);
         mViewPager.setOnItemClickListener(new GalleryViewPager.OnItemClickListener() {
@@ -145,6 +149,14 @@ public class TouchGalleryActivity extends ActionBarActivity
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // not needed once the gallery is gone
+        ((ru.truba.touchgallery.GalleryWidget.UrlPagerAdapter) mViewPager.getAdapter())
+                .getDiskPrefetcher().cancel();
+    }
+
     @Override
     public void onItemChange(int i) {
         position = i;
@@ -287,22 +299,50 @@ public class TouchGalleryActivity extends ActionBarActivity
         }
     }
 
+    /**
+     * The file and the disk cache are read on the decode pool, as urgent as the current
+     * page, then the dialog is shown on the UI thread.
+     */
     protected void viewImageProperties() {
-        File file = getCurrentImageFile();
-        if (file != null && file.exists()) {
-            String path = file.getAbsolutePath();
-            String size = formatFileSize((int) new File(path).length());
-            Pair<Integer, Integer> resolution = getImageResolution(path);
+        final File file = getCurrentImageFile();
+        final URL url = parseUrl(items.get(position));
+        ImageLoaderScheduler.getInstance().getDecodeExecutor().execute(PriorityRunnable.wrap(new Runnable() {
+            @Override
+            public void run() {
+                final String message = file != null && file.exists() ? describeImage(url, file) : null;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        showImageProperties(file, message);
+                    }
+                });
+            }
+        }, 0));
+    }
 
-            StringBuilder sb = new StringBuilder()
-                    .append(path).append("\n\n")
-                    .append("Size:").append(size).append("\n")
-                    .append("Resolution:")
-                    .append(resolution.first).append("x").append(resolution.second).append("\n");
+    private String describeImage(URL url, File file) {
+        String path = file.getAbsolutePath();
+        String size = formatFileSize((int) file.length());
+        Pair<Integer, Integer> resolution = getImageResolution(url, path);
+
+        StringBuilder sb = new StringBuilder()
+                .append(path).append("\n\n")
+                .append("Size:").append(size).append("\n")
+                .append("Resolution:")
+                .append(resolution.first).append("x").append(resolution.second).append("\n");
+        return sb.toString();
+    }
 
+    /**
+     * @param message null if the file doesn't exist.
+     */
+    private void showImageProperties(File file, String message) {
+        if (isFinishing())
+            return;
+        if (message != null) {
             propertiesDlg = new AlertDialog.Builder(this)
                     .setTitle(R.string.image_properties)
-                    .setMessage(sb.toString())
+                    .setMessage(message)
                     .create();
             propertiesDlg.setOnDismissListener(new DialogInterface.OnDismissListener() {
                 @Override
@@ -333,6 +373,18 @@ public class TouchGalleryActivity extends ActionBarActivity
         }
     }
 
+    /**
+     * Look up the metadata index of the disk cache before parsing the file.
+     */
+    private Pair<Integer, Integer> getImageResolution(URL url, String path) {
+        if (!url.getProtocol().equals("file")) {
+            ImageMetadata metadata = ImageDiskCache.getInstance(this).getMetadata(ImageDiskCache.keyOf(url));
+            if (metadata != null)
+                return new Pair<>(metadata.width, metadata.height);
+        }
+        return getImageResolution(path);
+    }
+
     private static Pair<Integer, Integer> getImageResolution(String path) {
         final BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
@@ -0,0 +1,88 @@
+package ru.truba.touchgallery.TouchView;
+
+import android.os.SystemClock;
+
+/**
+ * Download throughput, measured by {@link InputStreamWrapper} as a moving average
+ * of recent reads. Thread-safe.
+ *
+ * <p>The bytes of all the streams are summed up over a window of the time some stream
+ * is open, so parallel downloads add up, and idle time between them doesn't count.</p>
+ */
+public class BandwidthMeter {
+    /** Weight of a new sample in the average. */
+    private static final float SMOOTHING = 0.3f;
+    /** Reads are summed up at least this long to make a sample, in ms. */
+    static final long SAMPLE_INTERVAL = 200;
+
+    private static BandwidthMeter instance;
+
+    private float bytesPerSecond;
+    private int sampleCount;
+
+    /** Open streams. */
+    private int streamCount;
+    /** Current sample: bytes read, busy time before {@link #busySince}. */
+    private long windowBytes, windowMillis;
+    /** When the streams were last sampled or the first one opened, if any are open. */
+    private long busySince;
+
+    public static synchronized BandwidthMeter getInstance() {
+        if (instance == null)
+            instance = new BandwidthMeter();
+        return instance;
+    }
+
+    /** A download stream is opened, its time counts from now. */
+    synchronized void streamStarted() {
+        if (streamCount++ == 0)
+            busySince = SystemClock.elapsedRealtime();
+    }
+
+    /** Bytes read by any stream. */
+    synchronized void addBytes(long bytes) {
+        windowBytes += bytes;
+        long now = SystemClock.elapsedRealtime();
+        if (windowMillis + now - busySince >= SAMPLE_INTERVAL)
+            takeSample(now);
+    }
+
+    /** A stream started by {@link #streamStarted()} is closed. */
+    synchronized void streamFinished() {
+        if (--streamCount > 0)
+            return;
+        // the tail of a small file counts too
+        takeSample(SystemClock.elapsedRealtime());
+    }
+
+    private void takeSample(long now) {
+        windowMillis += now - busySince;
+        busySince = now;
+        if (windowBytes <= 0 || windowMillis <= 0)
+            return;
+        float rate = windowBytes * 1000f / windowMillis;
+        if (sampleCount == 0)
+            bytesPerSecond = rate;
+        else
+            bytesPerSecond += SMOOTHING * (rate - bytesPerSecond);
+        ++sampleCount;
+        windowBytes = 0;
+        windowMillis = 0;
+    }
+
+    /**
+     * @return 0 if nothing has been downloaded yet.
+     */
+    public synchronized float getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public synchronized int getSampleCount() {
+        return sampleCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("BandwidthMeter[%.1f KB/s, samples=%d]", bytesPerSecond / 1024, sampleCount);
+    }
+}
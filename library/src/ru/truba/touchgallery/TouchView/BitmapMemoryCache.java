@@ -0,0 +1,265 @@
+package ru.truba.touchgallery.TouchView;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.net.URL;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide LRU cache of decoded bitmaps, shared by all {@link UrlTouchImageView}s.
+ *
+ * <p>Entries are keyed by url and decode size, see {@link #keyOf(URL, int, int)}, and
+ * the cache is bounded by the total byte size of its bitmaps.</p>
+ *
+ * <p>Bitmaps are reference counted: {@link #acquire(String)} and {@link #put} hand out
+ * a reference that must be given back by {@link #release(Bitmap)} instead of
+ * recycling the bitmap. A bitmap is handed to the {@link BitmapPool} only when it's
+ * neither referenced nor cached, so a view never destroys a bitmap another view is
+ * still showing.</p>
+ */
+public class BitmapMemoryCache {
+    private static final String TAG = "BitmapMemoryCache";
+
+    private static BitmapMemoryCache instance;
+
+    private static class Entry {
+        final String key;
+        final Bitmap bitmap;
+        final RotationBitmapRegionDecoder regionDecoder;
+        final int rotation;
+        final int byteCount;
+        int refCount;
+        boolean cached = true;
+
+        Entry(String key, Bitmap bitmap, RotationBitmapRegionDecoder regionDecoder, int rotation) {
+            this.key = key;
+            this.bitmap = bitmap;
+            this.regionDecoder = regionDecoder;
+            this.rotation = rotation;
+            this.byteCount = byteCountOf(bitmap);
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(0, 0.75f, true);
+    /** All the bitmaps handed out, cached or not. */
+    private final IdentityHashMap<Bitmap, Entry> inUse = new IdentityHashMap<>();
+    private long maxSize;
+    private long size;
+
+    private int hitCount, missCount, evictionCount;
+
+    /** The default budget is 1/8 of the max heap. */
+    public static synchronized BitmapMemoryCache getInstance() {
+        if (instance == null)
+            instance = new BitmapMemoryCache(Runtime.getRuntime().maxMemory() / 8);
+        return instance;
+    }
+
+    BitmapMemoryCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public static String keyOf(URL url, int maxWidth, int maxHeight) {
+        return url.toExternalForm() + "@" + maxWidth + "x" + maxHeight;
+    }
+
+    static int byteCountOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Get a cached bitmap and take a reference to it.
+     * @return null if not cached.
+     */
+    public synchronized Bitmap acquire(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.bitmap.isRecycled()) {
+            ++missCount;
+            return null;
+        }
+        ++hitCount;
+        ++entry.refCount;
+        inUse.put(entry.bitmap, entry);
+        return entry.bitmap;
+    }
+
+    /**
+     * The region decoder cached along with the bitmap of given key.
+     * @return null if not cached or no region decoder was put.
+     */
+    public synchronized RotationBitmapRegionDecoder getRegionDecoder(String key) {
+        Entry entry = entries.get(key);
+        return entry != null ? entry.regionDecoder : null;
+    }
+
+    /**
+     * Rotation to apply when drawing the bitmap of given key.
+     * @return 0 if not cached.
+     */
+    public synchronized int getRotation(String key) {
+        Entry entry = entries.get(key);
+        return entry != null ? entry.rotation : 0;
+    }
+
+    /**
+     * Cache a newly decoded bitmap, the caller keeps one reference to it.
+     * @param regionDecoder optional.
+     * @param rotation the bitmap is not rotated, this is applied when drawing.
+     */
+    public synchronized void put(String key, Bitmap bitmap, RotationBitmapRegionDecoder regionDecoder, int rotation) {
+        Entry entry = new Entry(key, bitmap, regionDecoder, rotation);
+        entry.refCount = 1;
+        inUse.put(bitmap, entry);
+
+        if (entry.byteCount > maxSize) {
+            entry.cached = false; // too large, just track the reference
+            return;
+        }
+
+        Entry old = entries.put(key, entry);
+        if (old != null)
+            uncache(old);
+        size += entry.byteCount;
+        trimToSize();
+    }
+
+    /**
+     * Count references to a bitmap that shouldn't be cached, e.g. a preview.
+     * The caller keeps one reference to it.
+     */
+    public synchronized void track(Bitmap bitmap) {
+        Entry entry = new Entry(null, bitmap, null, 0);
+        entry.refCount = 1;
+        entry.cached = false;
+        inUse.put(bitmap, entry);
+    }
+
+    /**
+     * Take one more reference to a bitmap in use.
+     * @return false if the bitmap is not referenced anymore.
+     */
+    public synchronized boolean retain(Bitmap bitmap) {
+        Entry entry = inUse.get(bitmap);
+        if (entry == null)
+            return false;
+        ++entry.refCount;
+        return true;
+    }
+
+    /**
+     * Give back a reference taken by {@link #acquire}, {@link #put}, {@link #track} or {@link #retain}. Bitmaps that
+     * are unknown to this cache are given to the pool right away.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        Entry entry = inUse.get(bitmap);
+        if (entry == null) {
+            BitmapPool.getInstance().put(bitmap);
+            return;
+        }
+        if (--entry.refCount <= 0) {
+            inUse.remove(bitmap);
+            if (!entry.cached) {
+                closeDecoder(entry);
+                BitmapPool.getInstance().put(entry.bitmap);
+            } else {
+                // it may be evicted now
+                trimToSize();
+            }
+        }
+    }
+
+    /**
+     * Drop the bitmaps of given url in all sizes, e.g. when the image has changed.
+     * The ones in use stay valid until released.
+     */
+    public synchronized void remove(URL url) {
+        String prefix = url.toExternalForm() + "@";
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (entry.key.startsWith(prefix)) {
+                it.remove();
+                uncache(entry);
+            }
+        }
+    }
+
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        trimToSize();
+    }
+
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    /** Bytes of the cached bitmaps, including the ones in use. */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return evictionCount;
+    }
+
+    /** Drop all the bitmaps that are not in use. */
+    public synchronized void evictAll() {
+        long oldMaxSize = maxSize;
+        maxSize = 0;
+        trimToSize();
+        maxSize = oldMaxSize;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("BitmapMemoryCache[size=%d/%d, entries=%d, in use=%d, hits=%d, misses=%d, evictions=%d]",
+                size, maxSize, entries.size(), inUse.size(), hitCount, missCount, evictionCount);
+    }
+
+    // ------- internal --------------
+
+    /** Evict LRU entries that are not in use until the size fits. */
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (entry.refCount > 0)
+                continue;
+            it.remove();
+            uncache(entry);
+            ++evictionCount;
+            Log.d(TAG, "evict " + entry.key + ", " + entry.byteCount + " bytes");
+        }
+    }
+
+    /** The entry has been removed from {@link #entries}. */
+    private void uncache(Entry entry) {
+        entry.cached = false;
+        size -= entry.byteCount;
+        if (entry.refCount <= 0) {
+            closeDecoder(entry);
+            BitmapPool.getInstance().put(entry.bitmap);
+        }
+    }
+
+    /**
+     * Close the decoders of an entry which is gone. It may be shared by another
+     * size of the image, which opens them again if needed.
+     */
+    private static void closeDecoder(Entry entry) {
+        if (entry.regionDecoder != null)
+            entry.regionDecoder.close();
+    }
+}
@@ -0,0 +1,213 @@
+package ru.truba.touchgallery.TouchView;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.TreeMap;
+
+/**
+ * Pool of unused mutable bitmaps to be reused by {@link BitmapFactory.Options#inBitmap}.
+ *
+ * <p>Bitmaps are bucketed by their allocation size. {@link #get} returns the smallest
+ * pooled bitmap that is large enough, but not wastefully larger, so page decodes and
+ * region decodes can share the pool. The pool is bounded by total bytes, the oldest
+ * bitmaps are recycled first.</p>
+ *
+ * <p>Reusing a bitmap of a different size requires KitKat, on older platforms the
+ * pool is disabled and {@link #put(Bitmap)} just recycles.</p>
+ */
+public class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    /** Don't reuse a bitmap more than this times larger than needed. */
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private static BitmapPool instance;
+
+    /** byte count -> bitmaps, newest last. */
+    private final TreeMap<Integer, LinkedList<Bitmap>> buckets = new TreeMap<>();
+    /** All pooled bitmaps, oldest first. */
+    private final LinkedList<Bitmap> order = new LinkedList<>();
+    private long maxSize;
+    private long size;
+
+    private int hitCount, missCount, putCount, evictionCount;
+
+    /** The default budget is 1/16 of the max heap. */
+    public static synchronized BitmapPool getInstance() {
+        if (instance == null)
+            instance = new BitmapPool(Runtime.getRuntime().maxMemory() / 16);
+        return instance;
+    }
+
+    BitmapPool(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    /**
+     * Take a bitmap which can hold width x height pixels of given config.
+     * @param config null means ARGB_8888.
+     * @return null if there's none.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if (!isSupported() || width <= 0 || height <= 0)
+            return null;
+
+        int required = width * height * bytesPerPixel(config);
+        Integer bucket = buckets.ceilingKey(required);
+        while (bucket != null && bucket <= required * MAX_SIZE_MULTIPLE) {
+            LinkedList<Bitmap> bitmaps = buckets.get(bucket);
+            Iterator<Bitmap> it = bitmaps.descendingIterator();
+            while (it.hasNext()) {
+                Bitmap bitmap = it.next();
+                if (bitmap.getConfig() == (config != null ? config : Bitmap.Config.ARGB_8888)) {
+                    it.remove();
+                    if (bitmaps.isEmpty())
+                        buckets.remove(bucket);
+                    order.remove(bitmap);
+                    size -= bucket;
+                    ++hitCount;
+                    return bitmap;
+                }
+            }
+            bucket = buckets.higherKey(bucket);
+        }
+        ++missCount;
+        return null;
+    }
+
+    /**
+     * Set {@link BitmapFactory.Options#inBitmap} to a pooled bitmap for decoding
+     * an image of given size, also make the result reusable. Nothing is done for
+     * HARDWARE bitmaps, which can't be mutable.
+     * @param width width of the decoded bitmap, inSampleSize applied.
+     * @param height height of the decoded bitmap, inSampleSize applied.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public void prepareOptions(BitmapFactory.Options options, int width, int height) {
+        if (!isSupported() || DecodeConfigPolicy.isHardware(options.inPreferredConfig))
+            return;
+        options.inMutable = true;
+        if (options.inBitmap == null)
+            options.inBitmap = get(width, height, options.inPreferredConfig);
+    }
+
+    /**
+     * Give a bitmap no longer used to the pool. Bitmaps that can't be reused are recycled.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled())
+            return;
+        int byteCount = allocationByteCountOf(bitmap);
+        if (!isSupported() || !bitmap.isMutable() || byteCount > maxSize) {
+            bitmap.recycle();
+            return;
+        }
+        if (order.contains(bitmap)) {
+            Log.w(TAG, "put twice");
+            return;
+        }
+
+        LinkedList<Bitmap> bitmaps = buckets.get(byteCount);
+        if (bitmaps == null) {
+            bitmaps = new LinkedList<>();
+            buckets.put(byteCount, bitmaps);
+        }
+        bitmaps.add(bitmap);
+        order.add(bitmap);
+        size += byteCount;
+        ++putCount;
+        trimToSize();
+    }
+
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        trimToSize();
+    }
+
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /** Number of {@link #get} calls that returned a bitmap to reuse. */
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    public synchronized int getPutCount() {
+        return putCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized void clear() {
+        long oldMaxSize = maxSize;
+        maxSize = 0;
+        trimToSize();
+        maxSize = oldMaxSize;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("BitmapPool[size=%d/%d, bitmaps=%d, hits=%d, misses=%d, puts=%d, evictions=%d]",
+                size, maxSize, order.size(), hitCount, missCount, putCount, evictionCount);
+    }
+
+    // ------- internal --------------
+
+    private void trimToSize() {
+        while (size > maxSize && !order.isEmpty()) {
+            Bitmap eldest = order.removeFirst();
+            int byteCount = allocationByteCountOf(eldest);
+            LinkedList<Bitmap> bitmaps = buckets.get(byteCount);
+            if (bitmaps != null) {
+                bitmaps.remove(eldest);
+                if (bitmaps.isEmpty())
+                    buckets.remove(byteCount);
+            }
+            size -= byteCount;
+            ++evictionCount;
+            eldest.recycle();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    static int allocationByteCountOf(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+            return bitmap.getAllocationByteCount();
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    static int bytesPerPixel(Bitmap.Config config) {
+        if (config == null)
+            return 4;
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
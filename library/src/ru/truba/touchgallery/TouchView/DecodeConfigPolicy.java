@@ -0,0 +1,95 @@
+package ru.truba.touchgallery.TouchView;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Picks the bitmap config to decode an image with, to use less pixel memory.
+ *
+ * <ul>
+ *     <li>Page bitmaps are never touched on the CPU, so on Oreo and later they're
+ *     decoded as HARDWARE bitmaps, kept in graphics memory only.</li>
+ *     <li>In low memory mode, opaque images are decoded as RGB_565, which takes half
+ *     of ARGB_8888.</li>
+ *     <li>Otherwise, and whenever the image may have alpha, ARGB_8888.</li>
+ * </ul>
+ *
+ * <p>HARDWARE bitmaps are immutable, so they're never pooled, see {@link BitmapPool}.</p>
+ */
+public class DecodeConfigPolicy {
+    private static final String TAG = "DecodeConfigPolicy";
+
+    /** Build.VERSION_CODES.O, above the compile SDK. */
+    private static final int SDK_HARDWARE_BITMAP = 26;
+
+    private static DecodeConfigPolicy instance;
+
+    /** Bitmap.Config.HARDWARE, null if not supported. */
+    private static final Bitmap.Config HARDWARE = hardwareConfig();
+
+    private volatile boolean lowMemoryMode;
+    private volatile boolean hardwareEnabled = true;
+
+    public static synchronized DecodeConfigPolicy getInstance() {
+        if (instance == null)
+            instance = new DecodeConfigPolicy();
+        return instance;
+    }
+
+    /** Decode opaque images as RGB_565. Off by default. */
+    public void setLowMemoryMode(boolean lowMemoryMode) {
+        this.lowMemoryMode = lowMemoryMode;
+    }
+
+    public boolean isLowMemoryMode() {
+        return lowMemoryMode;
+    }
+
+    /**
+     * Turn off HARDWARE page bitmaps, e.g. if the app reads their pixels. On by default.
+     */
+    public void setHardwareBitmapsEnabled(boolean enabled) {
+        this.hardwareEnabled = enabled;
+    }
+
+    /**
+     * Config of the whole page bitmap.
+     * @return null means the default, ARGB_8888.
+     */
+    public Bitmap.Config getPageConfig(ImageMetadata metadata) {
+        if (hardwareEnabled && HARDWARE != null)
+            return HARDWARE;
+        return getRegionConfig(metadata);
+    }
+
+    /**
+     * Config of region decodes, which go to the {@link BitmapPool} after use.
+     * @return null means the default, ARGB_8888.
+     */
+    public Bitmap.Config getRegionConfig(ImageMetadata metadata) {
+        if (lowMemoryMode && isOpaque(metadata))
+            return Bitmap.Config.RGB_565;
+        return null;
+    }
+
+    public static boolean isHardware(Bitmap.Config config) {
+        return config != null && config == HARDWARE;
+    }
+
+    /** Only JPEG is known to have no alpha without decoding it. */
+    private static boolean isOpaque(ImageMetadata metadata) {
+        return metadata != null && "image/jpeg".equals(metadata.mimeType);
+    }
+
+    private static Bitmap.Config hardwareConfig() {
+        if (Build.VERSION.SDK_INT < SDK_HARDWARE_BITMAP)
+            return null;
+        try {
+            return Bitmap.Config.valueOf("HARDWARE");
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "no hardware bitmap");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,467 @@
+package ru.truba.touchgallery.TouchView;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.*;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded LRU cache of downloaded image files.
+ *
+ * <p>Every entry is a plain file in the cache directory, so it can be decoded, shared
+ * or copied directly. The access order is recorded in a journal, which is replayed
+ * when the cache is opened, so the LRU order survives process restarts.</p>
+ *
+ * <p>Journal lines:</p>
+ * <ul>
+ *     <li>{@code PUT <key> <length>}, an entry was committed;</li>
+ *     <li>{@code GET <key>}, an entry was read;</li>
+ *     <li>{@code DEL <key>}, an entry was removed;</li>
+ *     <li>{@code META <key> <fields...>}, the {@link ImageMetadata} of an entry.</li>
+ * </ul>
+ *
+ * <p>Downloads are written to {@link #getTempFile(String)} and published by
+ * {@link #commit(String, File)}, the least recently used entries are then evicted
+ * until the total size fits {@link #getMaxSize()}. An interrupted download is kept
+ * along with {@link #getTempValidatorsFile(String)} to be resumed, partial files
+ * left for a week are deleted.</p>
+ */
+public class ImageDiskCache {
+    private static final String TAG = "ImageDiskCache";
+
+    public static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+
+    static final String DIR_NAME = "touchgallery";
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String MAGIC = "touchgallery.journal";
+    /** 2 since the keys are digests of the urls, the files of older keys are deleted. */
+    static final String VERSION = "2";
+    static final String TEMP_SUFFIX = ".download";
+    static final String VALIDATORS_SUFFIX = ".validators";
+    static final long MAX_TEMP_FILE_AGE = 7 * 24 * 3600 * 1000L;
+
+    private static final String PUT = "PUT";
+    private static final String GET = "GET";
+    private static final String DEL = "DEL";
+    private static final String META = "META";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    /** Hex digits of an MD5. */
+    private static final int KEY_LENGTH = 32;
+
+    /** Rebuild the journal when it has this many redundant lines. */
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private static ImageDiskCache instance;
+
+    private final File directory;
+    private long maxSize = DEFAULT_MAX_SIZE;
+    private long size = 0;
+
+    private static class Entry {
+        final long length;
+        ImageMetadata metadata;
+
+        Entry(long length) {
+            this.length = length;
+        }
+    }
+
+    /** In access order. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(0, 0.75f, true);
+    private Writer journalWriter;
+    private int redundantOpCount;
+    private boolean initialized = false;
+
+    private int hitCount, missCount, evictionCount;
+
+    public static synchronized ImageDiskCache getInstance(Context context) {
+        if (instance == null) {
+            // prefer public dir, so can share with other apps
+            File dir = context.getExternalCacheDir();
+            if (dir == null)
+                dir = context.getFilesDir().getAbsoluteFile();
+            instance = new ImageDiskCache(new File(dir, DIR_NAME));
+        }
+        return instance;
+    }
+
+    ImageDiskCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Cache key of the given url, also used as the file name: the MD5 of the whole url in
+     * hex, so urls of different hosts or paths never share a file, whatever their length.
+     */
+    public static String keyOf(URL url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(url.toExternalForm().getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new AssertionError(e); // both are always there
+        }
+    }
+
+    private static boolean isKey(String name) {
+        if (name.length() != KEY_LENGTH)
+            return false;
+        for (int i = 0; i < KEY_LENGTH; ++i) {
+            if (Character.digit(name.charAt(i), 16) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /** Where the files are, it may not exist yet. */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * The file of given entry, without checking or recording anything.
+     * The file may not exist.
+     */
+    public File getFile(String key) {
+        return new File(directory, key);
+    }
+
+    /** The file to download into before {@link #commit(String, File)}. */
+    public File getTempFile(String key) {
+        if (!directory.exists())
+            directory.mkdirs();
+        return new File(directory, key + TEMP_SUFFIX);
+    }
+
+    /**
+     * Where the downloader keeps the response validators of {@link #getTempFile(String)},
+     * deleted by {@link #commit(String, File)}.
+     */
+    public File getTempValidatorsFile(String key) {
+        return new File(directory, key + TEMP_SUFFIX + VALIDATORS_SUFFIX);
+    }
+
+    /**
+     * Look up an entry, counting a hit or a miss and marking it as most recently used.
+     * @return null if the entry doesn't exist.
+     */
+    public synchronized File get(String key) {
+        ensureInitialized();
+        File file = getFile(key);
+        Entry entry = entries.get(key);
+        if (entry == null && file.exists()) {
+            // not journaled, e.g. written by an older version
+            entry = new Entry(file.length());
+            entries.put(key, entry);
+            size += entry.length;
+            writeJournal(PUT, key, String.valueOf(entry.length));
+            trimToSize();
+        }
+
+        if (entry != null && file.exists()) {
+            ++hitCount;
+            writeJournal(GET, key, null);
+            ++redundantOpCount;
+            compactJournalIfNeeded();
+            return file;
+        }
+
+        if (entry != null) {
+            // deleted behind our back
+            entries.remove(key);
+            size -= entry.length;
+        }
+        ++missCount;
+        return null;
+    }
+
+    /**
+     * Publish a downloaded file as the entry of given key, then evict old entries if
+     * the cache grows beyond its max size.
+     * @param tempFile usually {@link #getTempFile(String)}.
+     * @return false if the file can't be moved into place.
+     */
+    public synchronized boolean commit(String key, File tempFile) {
+        ensureInitialized();
+        File file = getFile(key);
+        if (!tempFile.equals(file) && !tempFile.renameTo(file)) {
+            Log.w(TAG, "failed to commit " + key);
+            tempFile.delete();
+            return false;
+        }
+
+        getTempValidatorsFile(key).delete();
+
+        Entry entry = new Entry(file.length());
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            size -= old.length;
+            redundantOpCount += old.metadata != null ? 2 : 1;
+        }
+        size += entry.length;
+        writeJournal(PUT, key, String.valueOf(entry.length));
+        trimToSize();
+        compactJournalIfNeeded();
+        return true;
+    }
+
+    public synchronized void remove(String key) {
+        ensureInitialized();
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            size -= entry.length;
+            writeJournal(DEL, key, null);
+            redundantOpCount += entry.metadata != null ? 3 : 2;
+            compactJournalIfNeeded();
+        }
+        getFile(key).delete();
+    }
+
+    /**
+     * The metadata recorded for given entry.
+     * @return null if the entry doesn't exist or has no metadata yet.
+     */
+    public synchronized ImageMetadata getMetadata(String key) {
+        ensureInitialized();
+        Entry entry = entries.get(key);
+        return entry != null ? entry.metadata : null;
+    }
+
+    /**
+     * Whether the entry exists but should be revalidated, see {@link ImageMetadata#expires}.
+     */
+    public synchronized boolean isStale(String key) {
+        ImageMetadata metadata = getMetadata(key);
+        return metadata != null && metadata.isStale(System.currentTimeMillis());
+    }
+
+    /**
+     * Record the metadata of an existing entry, it's dropped along with the entry.
+     */
+    public synchronized void putMetadata(String key, ImageMetadata metadata) {
+        ensureInitialized();
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return;
+        if (entry.metadata != null)
+            ++redundantOpCount;
+        entry.metadata = metadata;
+        writeJournal(META, key, metadata.serialize());
+        compactJournalIfNeeded();
+    }
+
+    /** Set the byte budget, evicting entries right away if needed. */
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        if (initialized)
+            trimToSize();
+    }
+
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    /** Total bytes of all entries. */
+    public synchronized long getSize() {
+        ensureInitialized();
+        return size;
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("ImageDiskCache[size=%d/%d, entries=%d, hits=%d, misses=%d, evictions=%d]",
+                size, maxSize, entries.size(), hitCount, missCount, evictionCount);
+    }
+
+    // ------- internal --------------
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        // never evict the most recent entry, it's about to be used
+        while (size > maxSize && entries.size() > 1 && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            Entry entry = eldest.getValue();
+            size -= entry.length;
+            getFile(eldest.getKey()).delete();
+            writeJournal(DEL, eldest.getKey(), null);
+            redundantOpCount += entry.metadata != null ? 3 : 2;
+            ++evictionCount;
+            Log.d(TAG, "evict " + eldest.getKey() + ", " + entry.length + " bytes");
+        }
+    }
+
+    private void ensureInitialized() {
+        if (initialized)
+            return;
+        initialized = true;
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.w(TAG, "can't create " + directory);
+        }
+
+        File journal = new File(directory, JOURNAL_FILE);
+        if (journal.exists()) {
+            try {
+                readJournal(journal);
+            } catch (IOException e) {
+                Log.w(TAG, "journal is corrupt, rebuilding", e);
+                entries.clear();
+                size = 0;
+            }
+        }
+        // drop entries whose files are gone, or changed size
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> entry = it.next();
+            File file = getFile(entry.getKey());
+            if (!file.exists() || file.length() != entry.getValue().length) {
+                it.remove();
+                size -= entry.getValue().length;
+            }
+        }
+        rebuildJournal();
+        trimToSize();
+        deleteStrayFiles();
+    }
+
+    /** Partial downloads nobody came back for, and files of the keys of older versions. */
+    private void deleteStrayFiles() {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.equals(JOURNAL_FILE) || name.equals(JOURNAL_FILE_TMP))
+                continue;
+            if (name.endsWith(TEMP_SUFFIX) || name.endsWith(VALIDATORS_SUFFIX)) {
+                if (now - file.lastModified() > MAX_TEMP_FILE_AGE)
+                    file.delete();
+            } else if (!isKey(name)) {
+                file.delete();
+            }
+        }
+    }
+
+    private void readJournal(File journal) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "US-ASCII"));
+        try {
+            String magic = reader.readLine();
+            String version = reader.readLine();
+            if (!MAGIC.equals(magic) || !VERSION.equals(version)) {
+                throw new IOException("unexpected journal header: " + magic + ", " + version);
+            }
+
+            String line;
+            int lineCount = 0, metadataCount = 0;
+            while ((line = reader.readLine()) != null) {
+                ++lineCount;
+                String[] parts = line.split(" ");
+                if (parts.length < 2)
+                    continue; // truncated by a crash
+                String key = parts[1];
+                if (PUT.equals(parts[0]) && parts.length >= 3) {
+                    Entry entry = new Entry(Long.parseLong(parts[2]));
+                    Entry old = entries.put(key, entry);
+                    if (old != null)
+                        size -= old.length;
+                    size += entry.length;
+                } else if (GET.equals(parts[0])) {
+                    entries.get(key); // touch
+                } else if (DEL.equals(parts[0])) {
+                    Entry old = entries.remove(key);
+                    if (old != null)
+                        size -= old.length;
+                } else if (META.equals(parts[0]) && parts.length >= 2 + ImageMetadata.FIELD_COUNT) {
+                    Entry entry = entries.get(key);
+                    if (entry != null) {
+                        if (entry.metadata == null)
+                            ++metadataCount;
+                        entry.metadata = ImageMetadata.parse(parts, 2);
+                    }
+                }
+            }
+            redundantOpCount = lineCount - entries.size() - metadataCount;
+        } catch (NumberFormatException e) {
+            throw new IOException(e.toString());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /** Write a journal with a PUT line per entry, in access order. */
+    private void rebuildJournal() {
+        try {
+            if (journalWriter != null)
+                journalWriter.close();
+
+            File tmp = new File(directory, JOURNAL_FILE_TMP);
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "US-ASCII"));
+            try {
+                writer.write(MAGIC + "\n" + VERSION + "\n");
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    Entry value = entry.getValue();
+                    writer.write(PUT + " " + entry.getKey() + " " + value.length + "\n");
+                    if (value.metadata != null)
+                        writer.write(META + " " + entry.getKey() + " " + value.metadata.serialize() + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+            File journal = new File(directory, JOURNAL_FILE);
+            if (!tmp.renameTo(journal))
+                throw new IOException("can't rename " + tmp);
+
+            journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journal, true), "US-ASCII"));
+            redundantOpCount = 0;
+        } catch (IOException e) {
+            // the cache still works, only the LRU order won't survive restarting
+            Log.w(TAG, "failed to write journal", e);
+            journalWriter = null;
+        }
+    }
+
+    /**
+     * @param args appended to the line, maybe null.
+     */
+    private void writeJournal(String op, String key, String args) {
+        if (journalWriter == null)
+            return;
+        try {
+            journalWriter.write(args != null ? op + " " + key + " " + args + "\n" : op + " " + key + "\n");
+            journalWriter.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "failed to append journal", e);
+        }
+    }
+
+    private void compactJournalIfNeeded() {
+        if (redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && redundantOpCount >= entries.size()) {
+            rebuildJournal();
+        }
+    }
+}
@@ -0,0 +1,621 @@
+package ru.truba.touchgallery.TouchView;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import ru.truba.touchgallery.TouchView.InputStreamWrapper.InputStreamProgressListener;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Downloads images into {@link ImageDiskCache}, one transfer per url.
+ *
+ * <p>All the concurrent requesters of a url share a single download job: they are
+ * notified of its progress and result on the main thread. The transfer is cancelled
+ * only when the last subscriber leaves, a new request for the url before that
+ * joins the job again.</p>
+ *
+ * <p>An interrupted transfer leaves its partial file in the cache, the next job for
+ * the url resumes it by a {@code Range} request, validated by {@code If-Range}
+ * against the ETag or Last-Modified of the first response.</p>
+ *
+ * <p>A fresh cached file is served as is, without a request. The check is done by the
+ * job, so the callers never touch the cache on the main thread.</p>
+ *
+ * <p>A cached file that is stale by the Cache-Control max-age or Expires of its
+ * response is revalidated by a conditional request, a 304 keeps the local file.
+ * If the server can't be reached, the stale file is still used.</p>
+ *
+ * <p>A job is queued by the most urgent of its subscribers, see
+ * {@link Subscription#setPriority(int)}. A prefetch may cap the rate of its reads,
+ * the cap is lifted once someone else waits for the url too.</p>
+ *
+ * <p>While a large image is arriving, previews are decoded from the partial file at a
+ * low resolution, so something can be shown long before the transfer is done.</p>
+ */
+public class ImageDownloader {
+    private static final String TAG = "ImageDownloader";
+
+    /** Longer side of the previews, in pixels. */
+    private static final int PREVIEW_MAX_SIZE = 480;
+    /** Don't decode a preview before this many new bytes arrived. */
+    private static final int PREVIEW_MIN_STEP = 64 * 1024;
+    /** At most this many previews per download. */
+    private static final int PREVIEW_STEPS = 8;
+
+    private static ImageDownloader instance;
+
+    /** Callbacks are invoked on the main thread. */
+    public interface Listener {
+        void onProgress(float progressValue, long bytesLoaded, long bytesTotal);
+        /**
+         * A low resolution decoding of the bytes received so far.
+         * @param preview a {@link BitmapMemoryCache} reference owned by the listener,
+         *                give it back by {@link BitmapMemoryCache#release(Bitmap)}.
+         * @param rotation EXIF rotation, the preview is not rotated.
+         */
+        void onPreview(Bitmap preview, int rotation);
+        /**
+         * @param file the cached file, null if failed.
+         */
+        void onComplete(File file);
+    }
+
+    private final Context mContext;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    /** Guarded by itself. */
+    private final HashMap<String, Job> jobs = new HashMap<>();
+
+    public static synchronized ImageDownloader getInstance(Context context) {
+        if (instance == null)
+            instance = new ImageDownloader(context.getApplicationContext());
+        return instance;
+    }
+
+    private ImageDownloader(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Subscribe to the download of given url, starting it if it's not in progress. It
+     * goes after the ones with a priority, see {@link PriorityRunnable#PRIORITY_DEFAULT}.
+     * @return call {@link Subscription#cancel()} if not interested anymore.
+     */
+    public Subscription fetch(URL url, Listener listener) {
+        return fetch(url, PriorityRunnable.PRIORITY_DEFAULT, listener);
+    }
+
+    /**
+     * @param priority lower first, see {@link PriorityRunnable}.
+     * @see #fetch(URL, Listener)
+     */
+    public Subscription fetch(URL url, int priority, Listener listener) {
+        return fetch(url, priority, true, 0, listener);
+    }
+
+    /**
+     * Download into the disk cache only, no preview is decoded for this subscriber.
+     * @param maxBytesPerSecond the reads of the transfer are slowed down to keep under
+     *                          it, as long as only prefetches wait for it. 0 for no cap.
+     * @see #fetch(URL, int, Listener)
+     */
+    public Subscription prefetch(URL url, int priority, long maxBytesPerSecond, Listener listener) {
+        return fetch(url, priority, false, maxBytesPerSecond, listener);
+    }
+
+    private Subscription fetch(URL url, int priority, boolean previews, long maxBytesPerSecond,
+                               Listener listener) {
+        String key = ImageDiskCache.keyOf(url);
+        Subscription subscription = new Subscription(listener, priority, previews, maxBytesPerSecond);
+        synchronized (jobs) {
+            Job job = jobs.get(key);
+            if (job == null) {
+                job = new Job(url, key, priority);
+                jobs.put(key, job);
+                ImageLoaderScheduler.getInstance().getNetworkExecutor().execute(job);
+            } else {
+                Log.d(TAG, "join download of " + key);
+            }
+            subscription.job = job;
+            job.subscriptions.add(subscription);
+            job.updatePriority();
+        }
+        return subscription;
+    }
+
+    /** Number of downloads queued or in progress. */
+    public int getJobCount() {
+        synchronized (jobs) {
+            return jobs.size();
+        }
+    }
+
+    static String formatHttpDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+
+    public class Subscription {
+        final Listener listener;
+        Job job;
+        /** Guarded by {@link #jobs}. */
+        int priority;
+        /** Wants {@link Listener#onPreview(Bitmap, int)}. */
+        final boolean previews;
+        /** 0 for no cap. */
+        final long maxBytesPerSecond;
+        /** Only accessed on the main thread. */
+        boolean cancelled;
+
+        Subscription(Listener listener, int priority, boolean previews, long maxBytesPerSecond) {
+            this.listener = listener;
+            this.priority = priority;
+            this.previews = previews;
+            this.maxBytesPerSecond = maxBytesPerSecond;
+        }
+
+        /**
+         * @return true if the file was transferred, false if the cached one was used,
+         *         either fresh or revalidated. Valid once completed.
+         */
+        public boolean isNewFile() {
+            return job.newFile;
+        }
+
+        /** Move the transfer in the queue, if it's not started yet. */
+        public void setPriority(int priority) {
+            synchronized (jobs) {
+                this.priority = priority;
+                job.updatePriority();
+            }
+        }
+
+        /** Stop receiving callbacks, the transfer stops if no one else is waiting. */
+        public void cancel() {
+            cancelled = true;
+            synchronized (jobs) {
+                job.subscriptions.remove(this);
+                if (job.subscriptions.isEmpty() && !job.started) {
+                    // never started, drop it from the queue
+                    ImageLoaderScheduler.getInstance().getNetworkExecutor().remove(job);
+                    if (jobs.get(job.key) == job)
+                        jobs.remove(job.key);
+                } else {
+                    job.updatePriority();
+                }
+            }
+        }
+    }
+
+    private class Job extends PriorityRunnable {
+        final URL url;
+        final String key;
+        /** Guarded by {@link #jobs}. */
+        final List<Subscription> subscriptions = new ArrayList<>(2);
+        /** Guarded by {@link #jobs}. */
+        boolean started;
+        private int lastPercentage = -1;
+        /** Set once {@link #finish(File)}, late previews are dropped then. */
+        volatile boolean done;
+        /** A preview is being decoded. */
+        volatile boolean previewing;
+        /** The cached file has been replaced by a transfer. */
+        volatile boolean newFile;
+        private long nextPreviewBytes = PREVIEW_MIN_STEP;
+
+        Job(URL url, String key, int priority) {
+            super(priority);
+            this.url = url;
+            this.key = key;
+        }
+
+        /** Take the priority of the most urgent subscriber. Guarded by {@link #jobs}. */
+        void updatePriority() {
+            if (started || subscriptions.isEmpty())
+                return;
+            int priority = Integer.MAX_VALUE;
+            for (Subscription subscription : subscriptions) {
+                priority = Math.min(priority, subscription.priority);
+            }
+            setPriority(ImageLoaderScheduler.getInstance().getNetworkExecutor(), priority);
+        }
+
+        /** @return 0 if any subscriber wants it at full speed. */
+        private long getMaxBytesPerSecond() {
+            synchronized (jobs) {
+                long max = 0;
+                for (Subscription subscription : subscriptions) {
+                    if (subscription.maxBytesPerSecond <= 0)
+                        return 0;
+                    max = Math.max(max, subscription.maxBytesPerSecond);
+                }
+                return max;
+            }
+        }
+
+        /**
+         * Sleep as long as the bytes read since the start need at the cap, if any.
+         * One buffer at a time, so a lifted cap is seen soon. A capped stream is left out
+         * of the {@link BandwidthMeter}, the cap would pass for the speed of the link.
+         */
+        private void throttle(InputStreamWrapper stream, long bytes, long startTime)
+                throws InterruptedIOException {
+            long maxBytesPerSecond = getMaxBytesPerSecond();
+            stream.setMetered(maxBytesPerSecond <= 0);
+            if (maxBytesPerSecond <= 0)
+                return;
+            long delay = bytes * 1000 / maxBytesPerSecond - (SystemClock.elapsedRealtime() - startTime);
+            if (delay <= 0)
+                return;
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        private boolean wantsPreviews() {
+            synchronized (jobs) {
+                for (Subscription subscription : subscriptions) {
+                    if (subscription.previews)
+                        return true;
+                }
+                return false;
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (jobs) {
+                if (subscriptions.isEmpty()) {
+                    if (jobs.get(key) == this)
+                        jobs.remove(key);
+                    return;
+                }
+                started = true;
+            }
+
+            File file = null;
+            try {
+                file = download();
+            } catch (Exception e) {
+                e.printStackTrace();
+                // a stale version is better than nothing
+                File stale = ImageDiskCache.getInstance(mContext).getFile(key);
+                if (stale.exists())
+                    file = stale;
+            }
+            finish(file);
+        }
+
+        /**
+         * @return null if cancelled.
+         */
+        private File download() throws IOException {
+            ImageDiskCache diskCache = ImageDiskCache.getInstance(mContext);
+            File cached = diskCache.get(key);
+            ImageMetadata cachedMetadata = null;
+            if (cached != null) {
+                cachedMetadata = diskCache.getMetadata(key);
+                if (cachedMetadata == null || !cachedMetadata.isStale(System.currentTimeMillis()))
+                    return cached;
+                Log.d(TAG, "revalidate " + key);
+            }
+
+            File downloadFile = diskCache.getTempFile(key);
+            File validatorsFile = diskCache.getTempValidatorsFile(key);
+            long offset = cached == null && downloadFile.exists() ? downloadFile.length() : 0;
+            String ifRange = offset > 0 ? readIfRange(validatorsFile) : null;
+            if (ifRange == null)
+                offset = 0;
+
+            URLConnection conn = url.openConnection();
+            if (offset > 0) {
+                conn.setRequestProperty("Range", "bytes=" + offset + "-");
+                conn.setRequestProperty("If-Range", ifRange);
+            } else if (cachedMetadata != null) {
+                if (cachedMetadata.etag != null)
+                    conn.setRequestProperty("If-None-Match", cachedMetadata.etag);
+                if (cachedMetadata.lastModified > 0)
+                    conn.setIfModifiedSince(cachedMetadata.lastModified);
+            }
+            if (cachedMetadata != null) {
+                try {
+                    conn.connect();
+                    int code = ((HttpURLConnection) conn).getResponseCode();
+                    if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        cachedMetadata.revalidated(conn);
+                        diskCache.putMetadata(key, cachedMetadata);
+                        ((HttpURLConnection) conn).disconnect();
+                        return cached;
+                    }
+                    if (code != HttpURLConnection.HTTP_OK)
+                        throw new IOException("HTTP " + code);
+                } catch (IOException e) {
+                    Log.d(TAG, "can't revalidate " + key + ", use the stale one, " + e);
+                    return cached;
+                }
+                Log.d(TAG, key + " has changed");
+            } else {
+                conn.connect();
+            }
+            if (offset > 0) {
+                int code = ((HttpURLConnection) conn).getResponseCode();
+                if (code == 416) {
+                    // the partial file is bad, start over
+                    ((HttpURLConnection) conn).disconnect();
+                    downloadFile.delete();
+                    validatorsFile.delete();
+                    return download();
+                }
+                String range = conn.getHeaderField("Content-Range");
+                if (code != HttpURLConnection.HTTP_PARTIAL || range == null
+                        || !range.startsWith("bytes " + offset + "-")) {
+                    Log.d(TAG, "can't resume " + key + ", fetch it all");
+                    offset = 0;
+                } else {
+                    Log.d(TAG, "resume " + key + " from " + offset);
+                }
+            }
+            if (offset == 0)
+                writeValidators(validatorsFile, conn);
+
+            InputStream is = conn.getInputStream();
+            int contentLen = conn.getContentLength();
+            long totalLen = contentLen >= 0 ? offset + contentLen : -1;
+            InputStreamWrapper bis = new InputStreamWrapper(is, 8192, totalLen, offset);
+            bis.setProgressListener(new InputStreamProgressListener() {
+                @Override
+                public void onProgress(float progressValue, long bytesLoaded, long bytesTotal) {
+                    publishProgress(progressValue, bytesLoaded, bytesTotal);
+                }
+            });
+
+            // download to a temp file
+            OutputStream out = null;
+            boolean completed = false, aborted = false;
+            try {
+                out = new FileOutputStream(downloadFile, offset > 0);
+                byte[] buf = new byte[8192];
+                int len;
+                long written = offset;
+                long startTime = SystemClock.elapsedRealtime();
+                throttle(bis, 0, startTime);
+                while ((len = bis.read(buf)) > 0) {
+                    aborted = abortIfUnwanted(downloadFile, validatorsFile);
+                    if (aborted)
+                        return null;
+                    out.write(buf, 0, len);
+                    written += len;
+                    maybeDecodePreview(downloadFile, written, totalLen);
+                    throttle(bis, written - offset, startTime);
+                }
+                if (totalLen >= 0 && written != totalLen) {
+                    // dropped early, kept to be resumed rather than committed truncated
+                    throw new IOException("got " + written + " of " + totalLen + " bytes of " + key);
+                }
+                completed = true;
+            } finally {
+                try {
+                    if (out != null)
+                        out.close();
+                } finally {
+                    // the connection too, and the stream leaves the BandwidthMeter
+                    bis.close();
+                    // once aborted, the file may belong to a new job
+                    if (!completed && !aborted && !validatorsFile.exists())
+                        downloadFile.delete(); // can't be resumed
+                }
+            }
+
+            // then publish it to the cache
+            if (!diskCache.commit(key, downloadFile))
+                return null;
+            newFile = true;
+            File file = diskCache.getFile(key);
+            indexMetadata(diskCache, file, conn);
+            if (cached != null)
+                BitmapMemoryCache.getInstance().remove(url); // decoded from the old version
+            return file;
+        }
+
+        /**
+         * Keep the validators of a full response, a partial file can't be resumed
+         * without them.
+         */
+        private void writeValidators(File validatorsFile, URLConnection conn) {
+            String etag = conn.getHeaderField("ETag");
+            if (etag != null && etag.startsWith("W/"))
+                etag = null; // If-Range requires a strong one
+            long lastModified = conn.getLastModified();
+            if (!(conn instanceof HttpURLConnection) || (etag == null && lastModified == 0)) {
+                validatorsFile.delete();
+                return;
+            }
+            try {
+                Writer writer = new OutputStreamWriter(new FileOutputStream(validatorsFile), "UTF-8");
+                try {
+                    writer.write((etag != null ? etag : "") + "\n" + lastModified + "\n");
+                } finally {
+                    writer.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "can't write validators of " + key, e);
+                validatorsFile.delete();
+            }
+        }
+
+        /**
+         * @return value of the If-Range header, null if the partial file can't be validated.
+         */
+        private String readIfRange(File validatorsFile) {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(validatorsFile), "UTF-8"));
+                try {
+                    String etag = reader.readLine();
+                    String lastModified = reader.readLine();
+                    if (etag != null && etag.length() > 0)
+                        return etag;
+                    if (lastModified != null && Long.parseLong(lastModified) > 0)
+                        return formatHttpDate(Long.parseLong(lastModified));
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException | NumberFormatException e) {
+                Log.d(TAG, "no validators of " + key + ", " + e);
+            }
+            return null;
+        }
+
+        /** Parse the headers once, so loaders needn't. */
+        private void indexMetadata(ImageDiskCache diskCache, File file, URLConnection conn) {
+            try {
+                ImageMetadata metadata = ImageMetadata.read(file);
+                if (metadata != null) {
+                    metadata.setValidators(conn);
+                    diskCache.putMetadata(key, metadata);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "can't read metadata of " + key, e);
+            }
+        }
+
+        /**
+         * Stop the transfer if all the subscribers have left. Once aborted the job is
+         * forgotten, so a new request starts a new job, which resumes the partial file.
+         */
+        private boolean abortIfUnwanted(File downloadFile, File validatorsFile) {
+            synchronized (jobs) {
+                if (!subscriptions.isEmpty())
+                    return false;
+                Log.d(TAG, "abort download of " + key);
+                // delete before a new job for this key may start writing it
+                if (!validatorsFile.exists())
+                    downloadFile.delete();
+                jobs.remove(key);
+                return true;
+            }
+        }
+
+        /**
+         * Decode the partial file on the decode pool every few steps of the transfer,
+         * skipped if the previous preview is still being decoded.
+         */
+        private void maybeDecodePreview(final File partialFile, long written, long totalLen) {
+            if (totalLen <= 0 || written < nextPreviewBytes || written >= totalLen || previewing
+                    || !wantsPreviews())
+                return;
+            nextPreviewBytes = written + Math.max(PREVIEW_MIN_STEP, totalLen / PREVIEW_STEPS);
+            previewing = true;
+            // as urgent as the transfer
+            ImageLoaderScheduler.getInstance().getDecodeExecutor().execute(new PriorityRunnable(getPriority()) {
+                @Override
+                public void run() {
+                    try {
+                        decodePreview(partialFile);
+                    } finally {
+                        previewing = false;
+                    }
+                }
+            });
+        }
+
+        private void decodePreview(File partialFile) {
+            try {
+                // null until the header has arrived
+                ImageMetadata metadata = ImageMetadata.read(partialFile);
+                if (metadata == null || done)
+                    return;
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inSampleSize = 1;
+                while (Math.max(metadata.width, metadata.height) / options.inSampleSize > PREVIEW_MAX_SIZE)
+                    options.inSampleSize *= 2;
+                // decodes as much as there is, the rest is left blank
+                Bitmap preview = BitmapFactory.decodeFile(partialFile.getPath(), options);
+                if (preview != null)
+                    publishPreview(preview, metadata.rotation);
+            } catch (Exception e) {
+                Log.d(TAG, "can't decode preview of " + key + ", " + e);
+            }
+        }
+
+        private void publishPreview(final Bitmap preview, final int rotation) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    final List<Subscription> targets;
+                    synchronized (jobs) {
+                        targets = new ArrayList<>(subscriptions);
+                    }
+                    BitmapMemoryCache memoryCache = BitmapMemoryCache.getInstance();
+                    memoryCache.track(preview);
+                    if (!done) {
+                        for (Subscription subscription : targets) {
+                            if (!subscription.cancelled && subscription.previews && memoryCache.retain(preview))
+                                subscription.listener.onPreview(preview, rotation);
+                        }
+                    }
+                    memoryCache.release(preview);
+                }
+            });
+        }
+
+        private void publishProgress(final float progressValue, final long bytesLoaded, final long bytesTotal) {
+            int percentage = (int) (progressValue * 100);
+            if (percentage == lastPercentage)
+                return;
+            lastPercentage = percentage;
+
+            final List<Subscription> targets;
+            synchronized (jobs) {
+                targets = new ArrayList<>(subscriptions);
+            }
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Subscription subscription : targets) {
+                        if (!subscription.cancelled)
+                            subscription.listener.onProgress(progressValue, bytesLoaded, bytesTotal);
+                    }
+                }
+            });
+        }
+
+        private void finish(final File file) {
+            done = true;
+            final List<Subscription> targets;
+            synchronized (jobs) {
+                if (jobs.get(key) == this)
+                    jobs.remove(key);
+                targets = new ArrayList<>(subscriptions);
+                subscriptions.clear();
+            }
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Subscription subscription : targets) {
+                        if (!subscription.cancelled)
+                            subscription.listener.onComplete(file);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package ru.truba.touchgallery.TouchView;
+
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide scheduler for image loading.
+ *
+ * <p>Network fetches and bitmap decodes run on two separate, size-capped pools, so
+ * a fast fling through a large gallery queues work instead of spawning a thread per
+ * page. Both pools default to a size derived from the number of cores, and can be
+ * resized at any time by {@link #setPoolSizes(int, int)}.</p>
+ *
+ * <p>Region decodes of zoomed images have a third pool, so tiles don't wait for whole
+ * images.</p>
+ *
+ * <p>The queues are ordered by {@link PriorityRunnable#getPriority()}, so the current
+ * page goes before the ones around it, whatever the order they were requested in.
+ * Plain runnables are queued with {@link PriorityRunnable#PRIORITY_DEFAULT}, after
+ * all the pages, and can still be removed by {@link ThreadPoolExecutor#remove(Runnable)}.</p>
+ *
+ * <p>Queue depth and active task counts are exposed so saturation can be observed.</p>
+ */
+public class ImageLoaderScheduler {
+    private static final String TAG = "ImageLoaderScheduler";
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+    /** Network fetch is I/O bound, allow a few more threads than cores. */
+    public static final int DEFAULT_NETWORK_POOL_SIZE = Math.max(2, Math.min(CPU_COUNT + 1, 4));
+    /** Decoding is CPU and memory bound, keep at least one core for the UI. */
+    public static final int DEFAULT_DECODE_POOL_SIZE = Math.max(1, Math.min(CPU_COUNT - 1, 3));
+    /** Tiles are small and decoded in parallel from one file, see {@link RotationBitmapRegionDecoder}. */
+    public static final int DEFAULT_REGION_POOL_SIZE = Math.max(1, Math.min(CPU_COUNT - 1, 3));
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static ImageLoaderScheduler instance;
+
+    private final ThreadPoolExecutor networkExecutor;
+    private final ThreadPoolExecutor decodeExecutor;
+    private final ThreadPoolExecutor regionExecutor;
+
+    public static synchronized ImageLoaderScheduler getInstance() {
+        if (instance == null)
+            instance = new ImageLoaderScheduler(DEFAULT_NETWORK_POOL_SIZE, DEFAULT_DECODE_POOL_SIZE,
+                    DEFAULT_REGION_POOL_SIZE);
+        return instance;
+    }
+
+    private ImageLoaderScheduler(int networkPoolSize, int decodePoolSize, int regionPoolSize) {
+        networkExecutor = newPool("network", networkPoolSize);
+        decodeExecutor = newPool("decode", decodePoolSize);
+        regionExecutor = newPool("region", regionPoolSize);
+    }
+
+    private static ThreadPoolExecutor newPool(final String name, int size) {
+        ThreadPoolExecutor executor = new PriorityPoolExecutor(size,
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "TouchGallery-" + name + "-" + count.getAndIncrement());
+                    }
+                });
+        // idle pools don't hold threads
+        if (Build.VERSION.SDK_INT >= 9)
+            executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Resize the pools. Values less than 1 keep the current size.
+     * @param networkPoolSize max concurrent downloads.
+     * @param decodePoolSize max concurrent bitmap decodes.
+     */
+    public void setPoolSizes(int networkPoolSize, int decodePoolSize) {
+        resize(networkExecutor, networkPoolSize);
+        resize(decodeExecutor, decodePoolSize);
+        Log.d(TAG, "pool sizes: network = " + networkExecutor.getMaximumPoolSize()
+                + ", decode = " + decodeExecutor.getMaximumPoolSize());
+    }
+
+    /**
+     * Resize the region decode pool. Values less than 1 keep the current size.
+     */
+    public void setRegionPoolSize(int size) {
+        resize(regionExecutor, size);
+        Log.d(TAG, "pool size: region = " + regionExecutor.getMaximumPoolSize());
+    }
+
+    private static void resize(ThreadPoolExecutor executor, int size) {
+        if (size < 1)
+            return;
+        // keep core <= max during the transition
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+
+    public ThreadPoolExecutor getNetworkExecutor() {
+        return networkExecutor;
+    }
+
+    public ThreadPoolExecutor getDecodeExecutor() {
+        return decodeExecutor;
+    }
+
+    public ThreadPoolExecutor getRegionExecutor() {
+        return regionExecutor;
+    }
+
+    /** Number of fetches waiting for a network thread. */
+    public int getNetworkQueueDepth() {
+        return networkExecutor.getQueue().size();
+    }
+
+    /** Number of fetches in progress. */
+    public int getNetworkActiveCount() {
+        return networkExecutor.getActiveCount();
+    }
+
+    /** Number of decodes waiting for a decode thread. */
+    public int getDecodeQueueDepth() {
+        return decodeExecutor.getQueue().size();
+    }
+
+    /** Number of decodes in progress. */
+    public int getDecodeActiveCount() {
+        return decodeExecutor.getActiveCount();
+    }
+
+    /** Number of region decodes waiting for a thread. */
+    public int getRegionQueueDepth() {
+        return regionExecutor.getQueue().size();
+    }
+
+    /** Number of region decodes in progress. */
+    public int getRegionActiveCount() {
+        return regionExecutor.getActiveCount();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("network: %d active, %d queued; decode: %d active, %d queued; "
+                        + "region: %d active, %d queued",
+                getNetworkActiveCount(), getNetworkQueueDepth(),
+                getDecodeActiveCount(), getDecodeQueueDepth(),
+                getRegionActiveCount(), getRegionQueueDepth());
+    }
+
+    /** Queues {@link PriorityRunnable}s, wrapping the other runnables. */
+    private static class PriorityPoolExecutor extends ThreadPoolExecutor {
+        /** The wrappers of the plain runnables queued, to remove them. Guarded by itself. */
+        private final Map<Runnable, PriorityRunnable> wrappers = new HashMap<>();
+
+        PriorityPoolExecutor(int size, ThreadFactory threadFactory) {
+            super(size, size, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<Runnable>(), threadFactory);
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            if (command instanceof PriorityRunnable) {
+                super.execute(command);
+                return;
+            }
+            PriorityRunnable wrapper = new PriorityRunnable(PriorityRunnable.PRIORITY_DEFAULT) {
+                @Override
+                public void run() {
+                    synchronized (wrappers) {
+                        if (wrappers.get(command) == this)
+                            wrappers.remove(command);
+                    }
+                    command.run();
+                }
+            };
+            synchronized (wrappers) {
+                wrappers.put(command, wrapper);
+            }
+            super.execute(wrapper);
+        }
+
+        @Override
+        public boolean remove(Runnable task) {
+            if (task instanceof PriorityRunnable)
+                return super.remove(task);
+            PriorityRunnable wrapper;
+            synchronized (wrappers) {
+                wrapper = wrappers.remove(task);
+            }
+            return wrapper != null && super.remove(wrapper);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package ru.truba.touchgallery.TouchView;
+
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+
+/**
+ * What we need to know about an image file before decoding it.
+ *
+ * <p>It's collected once when the file is downloaded, then indexed by
+ * {@link ImageDiskCache}, so later loads can skip the EXIF and bounds parsing.</p>
+ */
+public class ImageMetadata {
+    /** Pixel size as stored in the file, without EXIF rotation. */
+    public int width, height;
+    /** Clockwise rotation in degrees from EXIF orientation. */
+    public int rotation;
+    /** Maybe null. */
+    public String mimeType;
+    /** Byte length of the file. */
+    public long length;
+    /** HTTP validators, maybe null or 0. */
+    public String etag;
+    public long lastModified;
+    /** When the file should be revalidated, 0 if never. */
+    public long expires;
+
+    public boolean isStale(long now) {
+        return expires > 0 && now >= expires;
+    }
+
+    /** Width after rotation. */
+    public int getDisplayWidth() {
+        return rotation == 90 || rotation == 270 ? height : width;
+    }
+
+    /** Height after rotation. */
+    public int getDisplayHeight() {
+        return rotation == 90 || rotation == 270 ? width : height;
+    }
+
+    /**
+     * Parse the header and EXIF of an image file.
+     * @return null if it's not a decodable image.
+     */
+    public static ImageMetadata read(File file) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        ImageMetadata metadata = new ImageMetadata();
+        metadata.width = options.outWidth;
+        metadata.height = options.outHeight;
+        metadata.mimeType = options.outMimeType;
+        metadata.length = file.length();
+        metadata.rotation = getRotationDegress(file.getPath());
+        return metadata;
+    }
+
+    /** Take the validators and freshness of a full response. */
+    public void setValidators(URLConnection conn) {
+        etag = conn.getHeaderField("ETag");
+        lastModified = conn.getLastModified();
+        expires = expiresOf(conn);
+    }
+
+    /**
+     * Update by a 304 response, which may come with new validators.
+     */
+    public void revalidated(URLConnection conn) {
+        String newEtag = conn.getHeaderField("ETag");
+        if (newEtag != null)
+            etag = newEtag;
+        if (conn.getLastModified() > 0)
+            lastModified = conn.getLastModified();
+        expires = expiresOf(conn);
+    }
+
+    /**
+     * By Cache-Control max-age, or Expires.
+     * @return 0 if the response says nothing about its freshness.
+     */
+    static long expiresOf(URLConnection conn) {
+        long date = conn.getDate() > 0 ? conn.getDate() : System.currentTimeMillis();
+        String cacheControl = conn.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase();
+                if (directive.equals("no-cache") || directive.equals("no-store"))
+                    return date; // stale right away
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return date + Math.max(1, Long.parseLong(directive.substring(8).trim())) * 1000;
+                    } catch (NumberFormatException e) {
+                        // ignore it
+                    }
+                }
+            }
+        }
+        return Math.max(0, conn.getExpiration());
+    }
+
+    static int getRotationDegress(String filename) throws IOException {
+        ExifInterface exif = new ExifInterface(filename);
+        int rotation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        return exifToDegrees(rotation);
+    }
+
+    private static int exifToDegrees(int exifOrientation) {
+        if (exifOrientation == ExifInterface.ORIENTATION_ROTATE_90) { return 90; }
+        else if (exifOrientation == ExifInterface.ORIENTATION_ROTATE_180) {  return 180; }
+        else if (exifOrientation == ExifInterface.ORIENTATION_ROTATE_270) {  return 270; }
+        return 0;
+    }
+
+    // ------- journal format --------------
+
+    /** Space separated fields, no field contains a space. */
+    String serialize() {
+        return width + " " + height + " " + rotation + " " + encode(mimeType) + " " + length
+                + " " + encode(etag) + " " + lastModified + " " + expires;
+    }
+
+    /**
+     * @param parts the fields written by {@link #serialize()} start at offset, at least
+     *              {@link #FIELD_COUNT} of them.
+     */
+    static ImageMetadata parse(String[] parts, int offset) {
+        ImageMetadata metadata = new ImageMetadata();
+        metadata.width = Integer.parseInt(parts[offset]);
+        metadata.height = Integer.parseInt(parts[offset + 1]);
+        metadata.rotation = Integer.parseInt(parts[offset + 2]);
+        metadata.mimeType = decode(parts[offset + 3]);
+        metadata.length = Long.parseLong(parts[offset + 4]);
+        metadata.etag = decode(parts[offset + 5]);
+        metadata.lastModified = Long.parseLong(parts[offset + 6]);
+        // added later
+        if (parts.length > offset + 7)
+            metadata.expires = Long.parseLong(parts[offset + 7]);
+        return metadata;
+    }
+
+    /** Number of the mandatory fields. */
+    static final int FIELD_COUNT = 7;
+
+    private static String encode(String s) {
+        if (s == null)
+            return "-";
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String decode(String s) {
+        if ("-".equals(s))
+            return null;
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%dx%d, rotation %d, %s, %d bytes", width, height, rotation, mimeType, length);
+    }
+}
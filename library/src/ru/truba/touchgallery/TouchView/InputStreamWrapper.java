@@ -8,23 +8,70 @@ public class InputStreamWrapper extends BufferedInputStream
 {
 	protected long mContentLen, mBytesLoaded;
 	protected InputStreamProgressListener mProgressListener;
+	/** Counted by {@link BandwidthMeter}, see {@link #setMetered(boolean)}. */
+	private boolean mMetered;
+	private boolean mClosed;
 	public InputStreamWrapper(InputStream in, int size, long contentLen)
+	{
+		this(in, size, contentLen, 0);
+	}
+
+	/**
+	 * @param bytesLoaded bytes got before this stream, e.g. when resuming a download.
+	 */
+	public InputStreamWrapper(InputStream in, int size, long contentLen, long bytesLoaded)
 	{
 		super(in, size);
 		mContentLen = contentLen;
-		mBytesLoaded = 0;
+		mBytesLoaded = bytesLoaded;
+		BandwidthMeter.getInstance().streamStarted();
+		mMetered = true;
 	}
 
 	@Override
 	public synchronized int read(byte[] buffer, int offset, int byteCount)
 			throws IOException
 	{
-		mBytesLoaded += byteCount;
+		int n = super.read(buffer, offset, byteCount);
+		if (n <= 0)
+			return n;
+		mBytesLoaded += n;
 		if (mProgressListener != null) 
 		{
 			mProgressListener.onProgress(mBytesLoaded * 1.0f / mContentLen, mBytesLoaded, mContentLen);
 		}
-		return super.read(buffer, offset, byteCount);
+
+		if (mMetered)
+			BandwidthMeter.getInstance().addBytes(n);
+		return n;
+	}
+
+	/**
+	 * Count the reads in {@link BandwidthMeter}, on by default. Off for a stream slowed
+	 * down on purpose.
+	 */
+	public synchronized void setMetered(boolean metered)
+	{
+		if (metered == mMetered || mClosed)
+			return;
+		mMetered = metered;
+		if (metered)
+			BandwidthMeter.getInstance().streamStarted();
+		else
+			BandwidthMeter.getInstance().streamFinished();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		synchronized (this)
+		{
+			mClosed = true;
+			if (mMetered)
+				BandwidthMeter.getInstance().streamFinished();
+			mMetered = false;
+		}
+		super.close();
 	}
 	
 	public void setProgressListener(InputStreamProgressListener listener)
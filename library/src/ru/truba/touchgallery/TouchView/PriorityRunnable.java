@@ -0,0 +1,64 @@
+package ru.truba.touchgallery.TouchView;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A task of the {@link ImageLoaderScheduler} pools, whose queues are ordered by
+ * priority, lower first, then in submission order.
+ *
+ * <p>The priority of a queued task is changed by {@link #setPriority(ThreadPoolExecutor, int)},
+ * which moves it in the queue.</p>
+ */
+public abstract class PriorityRunnable implements Runnable, Comparable<PriorityRunnable> {
+    /** Tasks submitted without a priority, after the loads of every page. */
+    public static final int PRIORITY_DEFAULT = Integer.MAX_VALUE;
+
+    private static final AtomicLong sequenceGenerator = new AtomicLong();
+
+    /** Only changed while not queued. */
+    private volatile int priority;
+    /** FIFO order within a priority. */
+    private final long sequence = sequenceGenerator.getAndIncrement();
+
+    protected PriorityRunnable(int priority) {
+        this.priority = priority;
+    }
+
+    /** Run a plain runnable with a priority. */
+    public static PriorityRunnable wrap(final Runnable runnable, int priority) {
+        return new PriorityRunnable(priority) {
+            @Override
+            public void run() {
+                runnable.run();
+            }
+        };
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Change the priority, the task is queued again if it's waiting in the executor.
+     * @return false if it's not queued there, e.g. already started.
+     */
+    public boolean setPriority(ThreadPoolExecutor executor, int priority) {
+        if (priority == this.priority)
+            return true;
+        if (!executor.remove(this)) {
+            this.priority = priority;
+            return false;
+        }
+        this.priority = priority;
+        executor.execute(this);
+        return true;
+    }
+
+    @Override
+    public int compareTo(PriorityRunnable another) {
+        if (priority != another.priority)
+            return priority < another.priority ? -1 : 1;
+        return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+    }
+}
@@ -3,27 +3,173 @@ package ru.truba.touchgallery.TouchView;
 import android.annotation.TargetApi;
 import android.graphics.*;
 import android.os.Build;
+import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * Created by panzy on 3/31/15.
+ *
+ * <p>A {@link BitmapRegionDecoder} serializes its calls, so a pool of them is opened
+ * over the same file on demand, one per core at most, for the regions to be decoded
+ * in parallel.</p>
+ *
+ * <p>Regions are given in the upright image, but decoded as they're stored in the file,
+ * the rotation is left to the drawing.</p>
  */
 public class RotationBitmapRegionDecoder implements TouchImageView.BitmapRegionDecodingDelegate {
-    private BitmapRegionDecoder regionDecoder;
-    private Matrix matrix = new Matrix();
+    private static final String TAG = "RotationBitmapRegionDecoder";
+
+    /** Each one holds an index of the file, so not too many. */
+    static final int MAX_DECODERS = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+
+    /** Guarded by this. */
+    private final ArrayList<BitmapRegionDecoder> idleDecoders = new ArrayList<>();
+    /** Opened decoders, idle or not. Guarded by this. */
+    private int decoderCount = 0;
+    /**
+     * The file couldn't be opened, e.g. evicted from the disk cache. Tried again once
+     * the file has changed, or after {@link #close()}. Guarded by this.
+     */
+    private boolean broken = false;
+    /** Last modification time of the file when it couldn't be opened. */
+    private long brokenFileTime;
+    /**
+     * Calls of {@link #close()}, a decoder taken before the last one is recycled when
+     * it's released. Written under this.
+     */
+    private volatile int closeCount;
     private int rotation = 0;
+    /** Used if the options of a decode have no config. */
+    private Bitmap.Config preferredConfig;
+    private String path;
+    private int rawWidth, rawHeight;
 
     public static RotationBitmapRegionDecoder newInstance(String path) throws IOException {
         RotationBitmapRegionDecoder r = new RotationBitmapRegionDecoder();
-        if (Build.VERSION.SDK_INT >= 10)
-            r.regionDecoder = BitmapRegionDecoder.newInstance(path, true);
+        r.path = path;
+        if (Build.VERSION.SDK_INT >= 10) {
+            BitmapRegionDecoder regionDecoder = BitmapRegionDecoder.newInstance(path, true);
+            r.rawWidth = regionDecoder.getWidth();
+            r.rawHeight = regionDecoder.getHeight();
+            r.idleDecoders.add(regionDecoder);
+            r.decoderCount = 1;
+        }
         return r;
     }
 
+    /**
+     * Don't open the file until the first region is decoded, most pages are never zoomed in.
+     * @param width raw width of the image, as in {@link ImageMetadata}.
+     * @param height raw height of the image.
+     */
+    public static RotationBitmapRegionDecoder newInstance(String path, int width, int height) {
+        RotationBitmapRegionDecoder r = new RotationBitmapRegionDecoder();
+        r.path = path;
+        r.rawWidth = width;
+        r.rawHeight = height;
+        return r;
+    }
+
+    /**
+     * Take an idle decoder, or open one more if there're not too many, otherwise wait.
+     * @return null if the file can't be opened.
+     */
+    private BitmapRegionDecoder acquireDecoder() {
+        synchronized (this) {
+            if (broken && new File(path).lastModified() != brokenFileTime)
+                broken = false; // written again since
+            while (idleDecoders.isEmpty() && decoderCount >= MAX_DECODERS && !broken) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            if (!idleDecoders.isEmpty())
+                return idleDecoders.remove(idleDecoders.size() - 1);
+            if (broken)
+                return null;
+            ++decoderCount; // opened out of the lock, it's slow
+        }
+
+        BitmapRegionDecoder decoder = openDecoder();
+        if (decoder == null) {
+            long fileTime = new File(path).lastModified();
+            synchronized (this) {
+                --decoderCount;
+                broken = true;
+                brokenFileTime = fileTime;
+                notifyAll();
+            }
+        }
+        return decoder;
+    }
+
+    /**
+     * @param closeCount {@link #closeCount} before the decoder was taken.
+     */
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+    private synchronized void releaseDecoder(BitmapRegionDecoder decoder, int closeCount) {
+        if (closeCount != this.closeCount) {
+            // closed while decoding
+            decoder.recycle();
+            --decoderCount;
+        } else {
+            idleDecoders.add(decoder);
+        }
+        notify();
+    }
+
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+    private BitmapRegionDecoder openDecoder() {
+        try {
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(path, true);
+            if (decoder.getWidth() != rawWidth || decoder.getHeight() != rawHeight) {
+                // replaced by a newer version meanwhile
+                Log.w(TAG, path + " has changed");
+                decoder.recycle();
+                return null;
+            }
+            return decoder;
+        } catch (IOException e) {
+            Log.w(TAG, "can't open " + path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Close the decoders, e.g. when the page is destroyed. The ones decoding are closed
+     * once done, and decoders are opened again if needed later.
+     */
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+    public synchronized void close() {
+        for (BitmapRegionDecoder decoder : idleDecoders) {
+            decoder.recycle();
+        }
+        decoderCount -= idleDecoders.size();
+        idleDecoders.clear();
+        ++closeCount;
+        broken = false;
+    }
+
+    /**
+     * @param config null means ARGB_8888, see {@link DecodeConfigPolicy#getRegionConfig}.
+     */
+    public void setPreferredConfig(Bitmap.Config config) {
+        preferredConfig = config;
+    }
+
     public void setRotation(int degree) {
         rotation = degree;
-        matrix.setRotate(rotation);
+    }
+
+    @Override
+    public int getRotation() {
+        return rotation;
     }
 
     @TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
@@ -51,35 +197,61 @@ public class RotationBitmapRegionDecoder implements TouchImageView.BitmapRegionD
                     rect2 = rect;
             }
 
-            Bitmap bmp = regionDecoder.decodeRegion(rect2, options);
-            if (rotation != 0) {
-                return Bitmap.createBitmap(bmp, 0, 0, bmp.getWidth(), bmp.getHeight(), matrix, true);
-            } else {
-                return bmp;
+            if (options.inPreferredConfig == null)
+                options.inPreferredConfig = preferredConfig;
+
+            // reuse a pooled bitmap
+            int sampleSize = Math.max(1, options.inSampleSize);
+            BitmapPool.getInstance().prepareOptions(options,
+                    (rect2.width() + sampleSize - 1) / sampleSize,
+                    (rect2.height() + sampleSize - 1) / sampleSize);
+
+            int closeCount = this.closeCount;
+            BitmapRegionDecoder regionDecoder = acquireDecoder();
+            if (regionDecoder == null)
+                return null;
+            Bitmap bmp;
+            try {
+                bmp = decodeRegion2(regionDecoder, rect2, options);
+            } finally {
+                releaseDecoder(regionDecoder, closeCount);
+            }
+            if (bmp == null && options.inBitmap != null) {
+                // e.g. cancelled by options.requestCancelDecode()
+                BitmapPool.getInstance().put(options.inBitmap);
             }
+            return bmp;
         }
         return null;
     }
 
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+    private static Bitmap decodeRegion2(BitmapRegionDecoder regionDecoder, Rect rect, BitmapFactory.Options options) {
+        try {
+            return regionDecoder.decodeRegion(rect, options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null)
+                throw e;
+            // the pooled bitmap can't be reused
+            BitmapPool.getInstance().put(options.inBitmap);
+            options.inBitmap = null;
+            return regionDecoder.decodeRegion(rect, options);
+        }
+    }
+
     @Override
     public int getHeight() {
-        if (Build.VERSION.SDK_INT >= 10) {
-            if (rotation == 0 || rotation == 180)
-                return regionDecoder.getHeight();
-            else
-                return regionDecoder.getWidth();
-        }
-        return 0;
+        if (rotation == 0 || rotation == 180)
+            return rawHeight;
+        else
+            return rawWidth;
     }
 
     @Override
     public int getWidth() {
-        if (Build.VERSION.SDK_INT >= 10) {
-            if (rotation == 0 || rotation == 180)
-                return regionDecoder.getWidth();
-            else
-                return regionDecoder.getHeight();
-        }
-        return 0;
+        if (rotation == 0 || rotation == 180)
+            return rawWidth;
+        else
+            return rawHeight;
     }
 }
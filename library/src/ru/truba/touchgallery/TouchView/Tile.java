@@ -0,0 +1,149 @@
+package ru.truba.touchgallery.TouchView;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.os.Message;
+
+/**
+ * A square region of the original image, decoded at the sample size of its level.
+ *
+ * <p>Tiles are created by {@link TileGrid} and reused for every decoding of their
+ * region. Only accessed on the UI thread, except {@link DecodeTask}, which runs on the
+ * decode pool.</p>
+ */
+class Tile {
+    /** First delay before decoding a tile again after it gave nothing, in ms. */
+    private static final long MIN_RETRY_DELAY = 500;
+    private static final long MAX_RETRY_DELAY = 30 * 1000;
+
+    final TileGrid grid;
+    final int sampleSize;
+    final int col, row;
+    /** Region in the upright original image. */
+    final Rect rect = new Rect();
+
+    /** Null if not decoded, or evicted. Not rotated, see {@link TileGrid#rotation}. */
+    Bitmap bitmap;
+    /** The decoding in progress, null if none. */
+    DecodeTask task;
+    /**
+     * Decodings in a row that gave nothing. Mostly transient, e.g. the file is being
+     * fetched again or memory is short, so it's tried again, less and less often.
+     */
+    private int failures;
+    /** Uptime before which the tile isn't decoded again, see {@link #failures}. */
+    private long retryTime;
+
+    /** Links of the LRU list of {@link TileCache}. */
+    Tile lruPrev, lruNext;
+    /**
+     * Drawn in the last frame of the view, so its display list may still refer to the
+     * bitmap. Never evicted then.
+     */
+    boolean drawn;
+
+    Tile(TileGrid grid, int sampleSize, int col, int row) {
+        this.grid = grid;
+        this.sampleSize = sampleSize;
+        this.col = col;
+        this.row = row;
+        int span = TileGrid.TILE_SIZE * sampleSize;
+        rect.set(col * span, row * span,
+                Math.min((col + 1) * span, grid.width),
+                Math.min((row + 1) * span, grid.height));
+    }
+
+    /**
+     * Start a decoding, the caller submits the task to the region executor.
+     * @param priority lower first, see {@link PriorityRunnable}.
+     * @param done sent when decoded, with the task as {@link Message#obj}.
+     */
+    DecodeTask newTask(int priority, Message done) {
+        task = new DecodeTask(this, priority, done);
+        done.obj = task;
+        return task;
+    }
+
+    /**
+     * The decoding gave nothing, back off before the next one.
+     * @return the delay of the next one, in ms.
+     */
+    long onFailed(long now) {
+        long delay = Math.min(MAX_RETRY_DELAY, MIN_RETRY_DELAY << Math.min(failures, 16));
+        ++failures;
+        retryTime = now + delay;
+        return delay;
+    }
+
+    void onDecoded() {
+        failures = 0;
+    }
+
+    /** Not backing off after a failed decoding. */
+    boolean canDecode(long now) {
+        return now >= retryTime;
+    }
+
+    /** Give up the decoding in progress, it's aborted if already started. */
+    void cancel() {
+        if (task != null) {
+            task.cancel();
+            ImageLoaderScheduler.getInstance().getRegionExecutor().remove(task);
+            task = null;
+        }
+    }
+
+    /**
+     * Decode a tile on a work thread, then the result is handed back to the UI thread.
+     *
+     * <p>A task is the token of one decoding of its tile, a result is used only if the
+     * task is still {@link Tile#task}.</p>
+     */
+    static class DecodeTask extends PriorityRunnable {
+        /** The tiles of the current page. */
+        static final int PRIORITY_PRIMARY = 0;
+        static final int PRIORITY_DEFAULT = 1;
+
+        final Tile tile;
+        private final Message done;
+        volatile boolean cancelled;
+        /** Set once decoding starts. */
+        private volatile BitmapFactory.Options options;
+        /** Set by {@link #run()}. */
+        Bitmap result;
+
+        DecodeTask(Tile tile, int priority, Message done) {
+            super(priority);
+            this.tile = tile;
+            this.done = done;
+        }
+
+        /** Called on the UI thread. */
+        void cancel() {
+            cancelled = true;
+            // either this sees the options, or run() sees cancelled
+            BitmapFactory.Options options = this.options;
+            if (options != null)
+                options.requestCancelDecode();
+        }
+
+        @Override
+        public void run() {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = tile.sampleSize;
+            this.options = options;
+            // skipped if no longer visible
+            if (cancelled)
+                return;
+            result = tile.grid.decoder.decodeRegion(tile.rect, options);
+            if (cancelled) {
+                // aborted, or finished too late
+                BitmapPool.getInstance().put(result);
+                result = null;
+                return;
+            }
+            done.sendToTarget();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package ru.truba.touchgallery.TouchView;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+
+/**
+ * Process-wide LRU of decoded tiles, bounded by the byte size of their bitmaps.
+ *
+ * <p>The LRU list is linked through the tiles themselves, so touching a tile on every
+ * frame allocates nothing. Evicted bitmaps go to the {@link BitmapPool}, to be reused
+ * by the next tile decodings. Only accessed on the UI thread.</p>
+ *
+ * <p>The tiles drawn in the last frame of a view are never evicted, as the display
+ * list may still draw their bitmaps, so the cache may go over budget while they're
+ * shown. The budget is only for the tiles kept to pan back to. Such a tile removed
+ * anyway, e.g. when its view gives up the image, has its bitmap pooled only after the
+ * next frame.</p>
+ */
+public class TileCache {
+    private static final String TAG = "TileCache";
+
+    private static TileCache instance;
+
+    /** Least recently used first. */
+    private Tile head, tail;
+    private long maxSize;
+    private long size;
+    private int count;
+
+    private int evictionCount;
+
+    /** Bitmaps the last frame may still draw, pooled after the next one. */
+    private final ArrayList<Bitmap> retired = new ArrayList<>();
+    private boolean releaseScheduled;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable releaseRetired = new Runnable() {
+        @Override
+        public void run() {
+            releaseScheduled = false;
+            BitmapPool pool = BitmapPool.getInstance();
+            for (int i = retired.size() - 1; i >= 0; --i) {
+                pool.put(retired.get(i));
+            }
+            retired.clear();
+        }
+    };
+
+    /**
+     * The default budget is 1/16 of the max heap, with the {@link BitmapMemoryCache}
+     * and the {@link BitmapPool} it makes 1/4.
+     */
+    public static TileCache getInstance() {
+        if (instance == null)
+            instance = new TileCache(Runtime.getRuntime().maxMemory() / 16);
+        return instance;
+    }
+
+    TileCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /** Add a tile whose bitmap is just set, evicting old tiles if needed. */
+    void put(Tile tile) {
+        link(tile);
+        size += BitmapPool.allocationByteCountOf(tile.bitmap);
+        ++count;
+        trimToSize(tile);
+    }
+
+    /** Mark a tile as most recently used. */
+    void touch(Tile tile) {
+        if (tile.bitmap == null || tile == tail)
+            return;
+        unlink(tile);
+        link(tile);
+    }
+
+    /** Drop the bitmap of a tile, if decoded. */
+    void remove(Tile tile) {
+        if (tile.bitmap == null)
+            return;
+        unlink(tile);
+        size -= BitmapPool.allocationByteCountOf(tile.bitmap);
+        --count;
+        if (tile.drawn)
+            retire(tile.bitmap);
+        else
+            BitmapPool.getInstance().put(tile.bitmap);
+        tile.bitmap = null;
+    }
+
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        trimToSize(null);
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TileCache[size=%d/%d, tiles=%d, evictions=%d]",
+                size, maxSize, count, evictionCount);
+    }
+
+    // ------- internal --------------
+
+    /**
+     * @param keep don't evict this one, maybe null.
+     */
+    private void trimToSize(Tile keep) {
+        // the drawn tiles are touched on every frame, so they're at the end
+        Tile tile = head;
+        while (size > maxSize && tile != null) {
+            Tile next = tile.lruNext;
+            if (tile != keep && !tile.drawn) {
+                remove(tile);
+                ++evictionCount;
+                Log.d(TAG, "evict tile " + tile.col + "," + tile.row + "@" + tile.sampleSize);
+            }
+            tile = next;
+        }
+    }
+
+    private void retire(Bitmap bitmap) {
+        retired.add(bitmap);
+        if (releaseScheduled)
+            return;
+        releaseScheduled = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+            postAfterNextFrame(handler, releaseRetired);
+        else
+            handler.post(releaseRetired); // after the traversal the view has asked for
+    }
+
+    /** The frame callback comes before the drawing, the post after it. */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static void postAfterNextFrame(final Handler handler, final Runnable runnable) {
+        Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                handler.post(runnable);
+            }
+        });
+    }
+
+    /** Append as the most recent one. */
+    private void link(Tile tile) {
+        tile.lruPrev = tail;
+        tile.lruNext = null;
+        if (tail != null)
+            tail.lruNext = tile;
+        else
+            head = tile;
+        tail = tile;
+    }
+
+    private void unlink(Tile tile) {
+        if (tile.lruPrev != null)
+            tile.lruPrev.lruNext = tile.lruNext;
+        else
+            head = tile.lruNext;
+        if (tile.lruNext != null)
+            tile.lruNext.lruPrev = tile.lruPrev;
+        else
+            tail = tile.lruPrev;
+        tile.lruPrev = tile.lruNext = null;
+    }
+}
@@ -0,0 +1,87 @@
+package ru.truba.touchgallery.TouchView;
+
+/**
+ * The tiles of one image, as a pyramid of levels with power of 2 sample sizes.
+ *
+ * <p>A tile is {@link #TILE_SIZE} pixels square once decoded, so it covers
+ * TILE_SIZE * sampleSize pixels of the original image, and a tile of level n covers
+ * 4 tiles of level n-1. Tiles are created on first use. Only accessed on the UI
+ * thread.</p>
+ */
+class TileGrid {
+    static final int TILE_SIZE = 512;
+    private static final int MAX_LEVELS = 8;
+    static final int MAX_SAMPLE_SIZE = 1 << (MAX_LEVELS - 1);
+
+    final TouchImageView.BitmapRegionDecodingDelegate decoder;
+    /** Size of the upright original image. */
+    final int width, height;
+    /** Clockwise degrees to rotate the decoded tiles by. */
+    final int rotation;
+    /** Indexed by log2(sampleSize), then row * columns + col. */
+    private final Tile[][] levels = new Tile[MAX_LEVELS][];
+
+    TileGrid(TouchImageView.BitmapRegionDecodingDelegate decoder) {
+        this.decoder = decoder;
+        this.width = decoder.getWidth();
+        this.height = decoder.getHeight();
+        this.rotation = decoder.getRotation();
+    }
+
+    static int span(int sampleSize) {
+        return TILE_SIZE * sampleSize;
+    }
+
+    int getColumnCount(int sampleSize) {
+        return (width + span(sampleSize) - 1) / span(sampleSize);
+    }
+
+    int getRowCount(int sampleSize) {
+        return (height + span(sampleSize) - 1) / span(sampleSize);
+    }
+
+    /**
+     * @param sampleSize a power of 2.
+     */
+    Tile getTile(int sampleSize, int col, int row) {
+        int level = Integer.numberOfTrailingZeros(sampleSize);
+        int columns = getColumnCount(sampleSize);
+        Tile[] tiles = levels[level];
+        if (tiles == null) {
+            tiles = new Tile[columns * getRowCount(sampleSize)];
+            levels[level] = tiles;
+        }
+        Tile tile = tiles[row * columns + col];
+        if (tile == null) {
+            tile = new Tile(this, sampleSize, col, row);
+            tiles[row * columns + col] = tile;
+        }
+        return tile;
+    }
+
+    /**
+     * @return null if the tile has never been used, or is out of the image.
+     */
+    Tile peekTile(int sampleSize, int col, int row) {
+        Tile[] tiles = levels[Integer.numberOfTrailingZeros(sampleSize)];
+        int columns = getColumnCount(sampleSize);
+        if (tiles == null || col < 0 || row < 0 || col >= columns || row >= getRowCount(sampleSize))
+            return null;
+        return tiles[row * columns + col];
+    }
+
+    /** Cancel all decodings and give the decoded tiles back, the grid is no longer used. */
+    void recycle() {
+        TileCache cache = TileCache.getInstance();
+        for (Tile[] tiles : levels) {
+            if (tiles == null)
+                continue;
+            for (Tile tile : tiles) {
+                if (tile == null)
+                    continue;
+                tile.cancel();
+                cache.remove(tile);
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package ru.truba.touchgallery.TouchView;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+/**
+ * Fling and zoom animations of a {@link TouchImageView}, stepped once per frame.
+ *
+ * <p>Frames come from {@link Choreographer} since Jelly Bean, or from a Handler about
+ * every 16ms before. Each step is computed from the time elapsed since the animation
+ * started, so the motion doesn't depend on the refresh rate, nor on dropped frames.
+ * Matrix changes, including the ones by touch events, are applied once per frame.
+ * Only accessed on the UI thread.</p>
+ */
+class TouchAnimator {
+    /**
+     * Time constant of the exponential fling deceleration in ms, the velocity decreases
+     * by 0.9 per frame at 60 fps.
+     */
+    static final float FLING_TIME_CONSTANT = 160;
+    /** A fling stops below this speed, in pixels per ms. */
+    private static final float MIN_FLING_VELOCITY = 0.03f;
+    static final long ZOOM_DURATION = 250;
+
+    interface Target {
+        /**
+         * Translate the image by a step of a fling.
+         * @return false if it can't move further.
+         */
+        boolean translateBy(float dx, float dy);
+
+        /** Set the scale and translation of the image, a step of a zoom. */
+        void zoomTo(float scale, float transX, float transY);
+
+        /** Apply the matrix, which has changed since the previous frame. */
+        void applyMatrix();
+
+        /** A fling or a zoom has finished, not called if stopped. */
+        void onAnimationEnd();
+    }
+
+    private final Target target;
+    private final FrameTicker ticker;
+    private boolean matrixDirty;
+
+    private boolean flinging;
+    private long flingStart;
+    private float flingDuration;
+    /** Initial velocity, pixels per ms. */
+    private float velocityX, velocityY;
+    /** Translation done so far. */
+    private float flungX, flungY;
+
+    private boolean zooming;
+    private long zoomStart;
+    private float fromScale, fromX, fromY;
+    private float toScale, toX, toY;
+
+    TouchAnimator(Target target) {
+        this.target = target;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+            ticker = new ChoreographerTicker(this);
+        else
+            ticker = new HandlerTicker(this);
+    }
+
+    /**
+     * Start a fling, which decelerates exponentially.
+     * @return false if too slow to move.
+     */
+    boolean fling(float velocityX, float velocityY) {
+        stop();
+        float speed = (float) Math.hypot(velocityX, velocityY);
+        if (speed < MIN_FLING_VELOCITY)
+            return false;
+        this.velocityX = velocityX;
+        this.velocityY = velocityY;
+        flungX = flungY = 0;
+        flingDuration = FLING_TIME_CONSTANT * (float) Math.log(speed / MIN_FLING_VELOCITY);
+        flingStart = now();
+        flinging = true;
+        ticker.postFrame();
+        return true;
+    }
+
+    /**
+     * Animate scale and translation of the matrix. As the translation changes in
+     * proportion to the scale, the image is zoomed around a fixed point.
+     */
+    void zoom(float fromScale, float fromX, float fromY, float toScale, float toX, float toY) {
+        stop();
+        this.fromScale = fromScale;
+        this.fromX = fromX;
+        this.fromY = fromY;
+        this.toScale = toScale;
+        this.toX = toX;
+        this.toY = toY;
+        zoomStart = now();
+        zooming = true;
+        ticker.postFrame();
+    }
+
+    /** Stop the animations where they are, e.g. when touched. */
+    void stop() {
+        flinging = zooming = false;
+    }
+
+    boolean isAnimating() {
+        return flinging || zooming;
+    }
+
+    /** Fling translation still to come, without the edges of the image. */
+    float getRemainingFlingX() {
+        return flinging ? flingDistance(velocityX) - flungX : 0;
+    }
+
+    float getRemainingFlingY() {
+        return flinging ? flingDistance(velocityY) - flungY : 0;
+    }
+
+    /** The matrix has changed, apply it on the next frame. */
+    void invalidateMatrix() {
+        matrixDirty = true;
+        ticker.postFrame();
+    }
+
+    // ------- internal --------------
+
+    private float flingDistance(float velocity) {
+        return flingOffset(velocity, flingDuration);
+    }
+
+    /** Distance at the time t of a fling, the integral of v * e^(-t / T). */
+    private static float flingOffset(float velocity, float t) {
+        return velocity * FLING_TIME_CONSTANT * (1 - (float) Math.exp(-t / FLING_TIME_CONSTANT));
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    void doFrame(long frameTimeMillis) {
+        boolean ended = false;
+
+        if (flinging) {
+            float t = Math.max(0, Math.min(frameTimeMillis - flingStart, flingDuration));
+            float x = flingOffset(velocityX, t), y = flingOffset(velocityY, t);
+            boolean moved = target.translateBy(x - flungX, y - flungY);
+            flungX = x;
+            flungY = y;
+            matrixDirty = true;
+            if (t >= flingDuration || !moved) {
+                flinging = false;
+                ended = true;
+            }
+        }
+
+        if (zooming) {
+            float f = Math.max(0, Math.min((frameTimeMillis - zoomStart) / (float) ZOOM_DURATION, 1));
+            // decelerate
+            f = 1 - (1 - f) * (1 - f);
+            // even steps of the scale ratio look linear
+            float scale = fromScale * (float) Math.pow(toScale / fromScale, f);
+            float k = toScale == fromScale ? f : (scale - fromScale) / (toScale - fromScale);
+            target.zoomTo(scale, fromX + (toX - fromX) * k, fromY + (toY - fromY) * k);
+            matrixDirty = true;
+            if (f >= 1) {
+                zooming = false;
+                ended = true;
+            }
+        }
+
+        if (matrixDirty) {
+            matrixDirty = false;
+            target.applyMatrix();
+        }
+        if (flinging || zooming)
+            ticker.postFrame();
+        if (ended && !isAnimating())
+            target.onAnimationEnd();
+    }
+
+    /** Calls {@link #doFrame(long)} once on the next frame after {@link #postFrame()}. */
+    private interface FrameTicker {
+        void postFrame();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class ChoreographerTicker implements FrameTicker, Choreographer.FrameCallback {
+        private final TouchAnimator animator;
+        private boolean posted;
+
+        ChoreographerTicker(TouchAnimator animator) {
+            this.animator = animator;
+        }
+
+        @Override
+        public void postFrame() {
+            if (!posted) {
+                posted = true;
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            posted = false;
+            animator.doFrame(frameTimeNanos / 1000000);
+        }
+    }
+
+    private static class HandlerTicker implements FrameTicker, Runnable {
+        private static final long FRAME_DELAY = 16;
+        private final TouchAnimator animator;
+        private final Handler handler = new Handler(Looper.getMainLooper());
+        private boolean posted;
+
+        HandlerTicker(TouchAnimator animator) {
+            this.animator = animator;
+        }
+
+        @Override
+        public void postFrame() {
+            if (!posted) {
+                posted = true;
+                handler.postDelayed(this, FRAME_DELAY);
+            }
+        }
+
+        @Override
+        public void run() {
+            posted = false;
+            animator.doFrame(now());
+        }
+    }
+}
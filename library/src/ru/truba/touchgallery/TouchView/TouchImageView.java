@@ -30,10 +30,11 @@ import android.view.View;
 import android.widget.ImageView;
 import junit.framework.Assert;
 
-import java.io.*;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ThreadPoolExecutor;
 
 @SuppressLint("NewApi")
 public class TouchImageView extends ImageView {
@@ -44,9 +45,17 @@ public class TouchImageView extends ImageView {
 
     // This matrix will be used to move and zoom image
     Matrix matrix = new Matrix();
+    /** EXIF rotation of the bitmap, applied when drawing instead of rotating the pixels. */
+    int bmpRotation = 0;
+    /** Maps the bitmap to the upright image, which {@link #matrix} works on. */
+    final Matrix rotationMatrix = new Matrix();
+    private final Matrix drawMatrix = new Matrix();
 
     static final long DOUBLE_PRESS_INTERVAL = 300;
-    static final float FRICTION = 0.9f;
+    /** A drag is flung only if still moving when released. */
+    static final long FLING_MAX_PAUSE = 100;
+    /** Positions along a fling, besides its end, whose tiles are decoded ahead. */
+    private static final int MAX_FLING_PREFETCH_STEPS = 3;
 
     // We can be in one of these 4 states
     static final int NONE = 0;
@@ -112,10 +121,24 @@ public class TouchImageView extends ImageView {
 
     // ------- end --------------
 
-    Bitmap overlapBmp;
-    Rect overlapBmpDstRect = new Rect();
     BitmapRegionDecodingDelegate regionDecoder;
-    Rect currVisibleRegion = new Rect();
+    /** Tiles of the original image, drawn over the sampled bitmap when zoomed in. */
+    TileGrid tileGrid;
+    /** Sample size of the tiles for the current scale, 0 if no tile is needed. */
+    int tileSampleSize = 0;
+    /** Tiles being decoded. */
+    private final ArrayList<Tile> decodingTiles = new ArrayList<>();
+    /** Tiles drawn in the last frame, see {@link Tile#drawn}. */
+    private final ArrayList<Tile> drawnTiles = new ArrayList<>();
+    /** Priority of the tile decodings, see {@link #setPrimary(boolean)}. */
+    private int tilePriority = Tile.DecodeTask.PRIORITY_DEFAULT;
+    /** Column and row range of the visible tiles, right and bottom exclusive. */
+    private final Rect visibleTiles = new Rect();
+    /** Scratch range of the tiles to prefetch. */
+    private final Rect tileRange = new Rect();
+    private final Rect tileSrcRect = new Rect();
+    private final RectF tileDstRect = new RectF();
+    private final RectF tileRotatedDstRect = new RectF();
     Paint bmpPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
 
     PointF last = new PointF();
@@ -125,18 +148,18 @@ public class TouchImageView extends ImageView {
 
     float oldDist = 1f;
 
-    PointF lastDelta = new PointF(0, 0);
-    float velocity = 0;
+    /** Drag velocity in pixels per ms. */
+    float velocityX = 0, velocityY = 0;
 
     long lastPressTime = 0, lastDragTime = 0;
-    boolean allowInert = false;
+    /** Fling and double tap zoom, and the matrix changes of each frame. */
+    TouchAnimator animator;
 
     private Context mContext;
     private Timer mClickTimer;
     private OnClickListener mOnClickListener;
     private Object mScaleDetector;
     private Handler mTimerHandler = null;
-    private WorkThread workThread = null;
     private UIHandler uiHandler = null;
 
     // Scale mode on DoubleTap
@@ -158,6 +181,10 @@ public class TouchImageView extends ImageView {
 
     private static class UIHandler extends Handler {
         public static final int MSG_INVALIDATE = 1;
+        /**
+         * {@link Message#obj} = {@link Tile.DecodeTask} done.
+         */
+        public static final int MSG_TILE_DECODED = 2;
 
         private WeakReference<TouchImageView> ref;
 
@@ -171,55 +198,14 @@ public class TouchImageView extends ImageView {
                 TouchImageView touchImageView = ref.get();
                 if (ref != null)
                     touchImageView.invalidate();
-            }
-        }
-    }
-
-    private static class WorkThread extends Thread {
-        public static final int MSG_DECODE_REGION = 1;
-
-        private WeakReference<TouchImageView> ref;
-        private Handler handler;
-        private int lastArg1 = 0;
-
-        public WorkThread(TouchImageView touchImageView) {
-            ref = new WeakReference<>(touchImageView);
-        }
-
-        @Override
-        public void run() {
-
-            Looper.prepare();
-
-            handler = new Handler() {
-                public void handleMessage(Message msg) {
-                    if (msg.what == MSG_DECODE_REGION) {
-                        TouchImageView touchImageView = ref.get();
-                        if (touchImageView != null) {
-                            // if lastArg1 != msg.arg1, then this task is stale
-                            ((Runnable) msg.obj).run();
-
-                            if (lastArg1 == msg.arg1)
-                                touchImageView.uiHandler.sendEmptyMessage(UIHandler.MSG_INVALIDATE);
-                            else {
-                                Log.d(TAG, "discard stale overlapBmp, random code = " + msg.arg1);
-                                touchImageView.overlapBmp = null;
-                            }
-                        }
-                    }
+            } else if (msg.what == MSG_TILE_DECODED) {
+                TouchImageView touchImageView = ref.get();
+                if (touchImageView != null) {
+                    touchImageView.onTileDecoded((Tile.DecodeTask) msg.obj);
+                } else {
+                    BitmapPool.getInstance().put(((Tile.DecodeTask) msg.obj).result);
                 }
-            };
-
-            Looper.loop();
-        }
-
-        public void removeMessage(int what) {
-            handler.removeMessages(what);
-        }
-
-        public void sendMessage(Message msg) {
-            handler.sendMessage(msg);
-            lastArg1 = msg.arg1;
+            }
         }
     }
 
@@ -244,8 +230,7 @@ public class TouchImageView extends ImageView {
 //        bmpPaint.setAlpha(100); // half transparent for testing
 		mTimerHandler = new TimeHandler(this);
         uiHandler = new UIHandler(this);
-        workThread = new WorkThread(this);
-        workThread.start();
+        animator = new TouchAnimator(new AnimationTarget());
         matrix.setTranslate(1f, 1f);
         m = new float[9];
         setImageMatrix(matrix);
@@ -255,20 +240,25 @@ public class TouchImageView extends ImageView {
             mScaleDetector = new ScaleGestureDetector(mContext, new ScaleListener());
         }
         setOnTouchListener(new OnTouchListener() {
+            // reused, nothing is allocated on ACTION_MOVE
+            private final WrapMotionEvent event = WrapMotionEvent.wrap(null);
+            private final PointF curr = new PointF();
+            private final PointF zoomCenter = new PointF();
+
             @Override
             public boolean onTouch(View v, MotionEvent rawEvent) {
                 if (!touchEnabled)
                     return false;
 
-                WrapMotionEvent event = WrapMotionEvent.wrap(rawEvent);
+                event.setEvent(rawEvent);
                 if (mScaleDetector != null) {
                     ((ScaleGestureDetector) mScaleDetector).onTouchEvent(rawEvent);
                 }
-                PointF curr = new PointF(event.getX(), event.getY());
+                curr.set(event.getX(), event.getY());
 
                 switch (event.getAction() & MotionEvent.ACTION_MASK) {
                     case MotionEvent.ACTION_DOWN:
-                        allowInert = false;
+                        animator.stop();
                         last.set(event.getX(), event.getY());
                         start.set(last);
                         mode = DRAG;
@@ -284,18 +274,27 @@ public class TouchImageView extends ImageView {
                         }
                         break;
                     case MotionEvent.ACTION_UP:
-                        allowInert = true;
                         mode = NONE;
                         int xDiff = (int) Math.abs(event.getX() - start.x);
                         int yDiff = (int) Math.abs(event.getY() - start.y);
 
-                        if (xDiff < CLICK && yDiff < CLICK) {
+                        if (xDiff >= CLICK || yDiff >= CLICK) {
+                            if (System.currentTimeMillis() - lastDragTime < FLING_MAX_PAUSE
+                                    && animator.fling(velocityX, velocityY)) {
+                                // be sharp where it stops
+                                prefetchFlingTiles();
+                            }
+                        } else {
 
                             //Perform scale on double click
                             long pressTime = System.currentTimeMillis();
                             if (pressTime - lastPressTime <= DOUBLE_PRESS_INTERVAL) {
                                 if (mClickTimer != null) mClickTimer.cancel();
 
+                                matrix.getValues(m);
+                                final float fromScale = saveScale;
+                                final float fromX = m[Matrix.MTRANS_X], fromY = m[Matrix.MTRANS_Y];
+
                                 // double tapping changes scale: min -> normalized -> max -> min
                                 float scaleFactor;
                                 if (saveScale < normalizedScale) {
@@ -322,14 +321,24 @@ public class TouchImageView extends ImageView {
 
                                 calcPadding();
                                 checkAndSetTranslate(0, 0);
+                                if (scaleEqual(saveScale, MIN_SCALE)) {
+                                    scaleMatrixToBounds();
+                                }
                                 lastPressTime = 0;
+
+                                // animate from where it was to there
+                                matrix.getValues(m);
+                                final float toScale = saveScale;
+                                final float toX = m[Matrix.MTRANS_X], toY = m[Matrix.MTRANS_Y];
+                                zoomTo(fromScale, fromX, fromY);
+                                animator.zoom(fromScale, fromX, fromY, toScale, toX, toY);
                             } else {
                                 lastPressTime = pressTime;
                                 mClickTimer = new Timer();
                                 mClickTimer.schedule(new Task(), 300);
-                            }
-                            if (scaleEqual(saveScale, MIN_SCALE)) {
-                                scaleMatrixToBounds();
+                                if (scaleEqual(saveScale, MIN_SCALE)) {
+                                    scaleMatrixToBounds();
+                                }
                             }
                         }
 
@@ -340,29 +349,30 @@ public class TouchImageView extends ImageView {
                             if (saveScale > maxScale()) {
                                 float mScaleFactor = maxScale() / saveScale;
                                 saveScale = maxScale();
-                                zoomBy(mScaleFactor, midPointF(event));
+                                midPoint(zoomCenter, event);
+                                zoomBy(mScaleFactor, zoomCenter);
                             }
                         }
 
                         mode = NONE;
-                        velocity = 0;
+                        velocityX = velocityY = 0;
                         oldDist = spacing(event);
                         //Log.d(TAG, "mode=NONE");
                         break;
 
                     case MotionEvent.ACTION_MOVE:
-                        allowInert = false;
                         if (mode == DRAG) {
                             float deltaX = curr.x - last.x;
                             float deltaY = curr.y - last.y;
 
                             long dragTime = System.currentTimeMillis();
 
-                            velocity = (float) distanceBetween(curr, last) / (dragTime - lastDragTime) * FRICTION;
+                            long dt = Math.max(1, dragTime - lastDragTime);
+                            velocityX = deltaX / dt;
+                            velocityY = deltaY / dt;
                             lastDragTime = dragTime;
 
                             checkAndSetTranslate(deltaX, deltaY);
-                            lastDelta.set(deltaX, deltaY);
                             last.set(curr.x, curr.y);
                         } else if (mScaleDetector == null && mode == ZOOM) {
                             float newDist = spacing(event);
@@ -376,21 +386,24 @@ public class TouchImageView extends ImageView {
                             mScaleFactor = limitScale(mScaleFactor);
                             saveScale *= mScaleFactor;
 
-                            if (mScaleFactor <= 0.99 || mScaleFactor >= 1.01)
-                                zoomBy(mScaleFactor, midPointF(event));
+                            if (mScaleFactor <= 0.99 || mScaleFactor >= 1.01) {
+                                midPoint(zoomCenter, event);
+                                zoomBy(mScaleFactor, zoomCenter);
+                            }
                         }
                         break;
                 }
 
-                setImageMatrix(matrix);
-                // suspend region decoding for performance
-                //Log.d(TAG, "mode = " + mode + ", v = " + velocity);
-                if (mode == ZOOM || (mode == DRAG && !isInertiaStopped())) {
-                    overlapBmp = null;
-                } else if (mode == NONE && isInertiaStopped()) {
+                // applied on the next frame, with the other changes till then
+                animator.invalidateMatrix();
+                // suspend tile decoding for performance, the decoded ones are still drawn
+                if (mode == NONE && !animator.isAnimating()) {
+                    clipBmpRegion();
+                } else if (mode == ZOOM && tileGrid != null && computeTileSampleSize() != tileSampleSize) {
+                    // refine progressively while pinching
                     clipBmpRegion();
                 }
-                invalidate();
+                event.setEvent(null);
                 return false;
             }
 
@@ -441,6 +454,7 @@ public class TouchImageView extends ImageView {
 
     public void resetScale()
     {
+        animator.stop();
         matrix.postScale(MIN_SCALE / saveScale, MIN_SCALE / saveScale, viewWidth / 2, viewHeight / 2);
         saveScale = MIN_SCALE;
 
@@ -450,7 +464,7 @@ public class TouchImageView extends ImageView {
         scaleMatrixToBounds();
 
         setImageMatrix(matrix);
-        overlapBmp = null;
+        clipBmpRegion();
         invalidate();
     }
 
@@ -464,58 +478,249 @@ public class TouchImageView extends ImageView {
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
-        drawOverlapImg(canvas);
-
-        if (!allowInert) return;
+        drawTiles(canvas);
+    }
 
-        // translate with inertia
-        final float deltaX = lastDelta.x * velocity, deltaY = lastDelta.y * velocity;
-        //Log.d(TAG, "delta = " + deltaX + ", " + deltaY);
-        if (deltaX > viewWidth || deltaY > viewHeight)
-        {
-            if (mode == NONE) {
-                clipBmpRegion();
-                drawOverlapImg(canvas);
-                velocity = 0;
-            }
+    /**
+     * The current page decodes its tiles before the other pages, the ones already
+     * queued are moved.
+     */
+    public void setPrimary(boolean primary) {
+        final int priority = primary ? Tile.DecodeTask.PRIORITY_PRIMARY : Tile.DecodeTask.PRIORITY_DEFAULT;
+        if (priority == tilePriority)
             return;
+        tilePriority = priority;
+        ThreadPoolExecutor executor = ImageLoaderScheduler.getInstance().getRegionExecutor();
+        for (Tile tile : decodingTiles) {
+            tile.task.setPriority(executor, priority);
         }
+    }
 
-        // decrease velocity
-        velocity *= FRICTION;
+    /** Show nothing, e.g. before the view is reused for another image. */
+    public void clearImage() {
+        animator.stop();
+        mode = NONE;
+        releaseTiles();
+        regionDecoder = null;
+        origImgWidth = origImgHeight = 0;
+        setImageDrawable(null);
+    }
 
-        if (Math.abs(deltaX) < 1 && Math.abs(deltaY) < 1) return;
+    /** Give up all the tiles of current image, including the ones being decoded. */
+    public void releaseTiles() {
+        cancelTileDecoding(false);
+        if (!drawnTiles.isEmpty())
+            invalidate(); // the bitmaps of the drawn ones are pooled after the next frame
+        if (tileGrid != null) {
+            tileGrid.recycle();
+            tileGrid = null;
+        }
+        clearDrawnTiles();
+        tileSampleSize = 0;
+    }
 
-        // perform translation
-        //Log.d(TAG, "perform translation, delta = " + deltaX + ", " + deltaY);
-        checkAndSetTranslate(deltaX, deltaY);
-        setImageMatrix(matrix);
+    /**
+     * @param keepVisible keep decoding the tiles of {@link #tileSampleSize} in
+     *                    {@link #visibleTiles}.
+     */
+    private void cancelTileDecoding(boolean keepVisible) {
+        for (int i = decodingTiles.size() - 1; i >= 0; --i) {
+            Tile tile = decodingTiles.get(i);
+            if (keepVisible && tile.sampleSize == tileSampleSize
+                    && visibleTiles.contains(tile.col, tile.row))
+                continue;
+            tile.cancel();
+            decodingTiles.remove(i);
+        }
+    }
 
-        //Log.d(TAG, "velocity = " + velocity + ", is inertia stopped = " + isInertiaStopped());
+    private void onTileDecoded(Tile.DecodeTask task) {
+        Tile tile = task.tile;
+        if (task.cancelled || tile.task != task || tile.grid != tileGrid) {
+            // the view has moved on since it was requested
+            BitmapPool.getInstance().put(task.result);
+            return;
+        }
+        tile.task = null;
+        decodingTiles.remove(tile);
+        if (task.result == null) {
+            // not on every frame, but drawn again to retry
+            postInvalidateDelayed(tile.onFailed(SystemClock.uptimeMillis()));
+            return;
+        }
+        tile.onDecoded();
+        tile.bitmap = task.result;
+        TileCache.getInstance().put(tile);
+
+        // only the area of the tile is dirty
+        if (tile.sampleSize == tileSampleSize && mapTile(tile, tileDstRect))
+            invalidate((int) tileDstRect.left, (int) tileDstRect.top,
+                    (int) Math.ceil(tileDstRect.right), (int) Math.ceil(tileDstRect.bottom));
+    }
 
-        // re-clip after inertia stopped
-        if (isInertiaStopped()) {
-            clipBmpRegion();
-            drawOverlapImg(canvas);
-            velocity = 0;
-        } else {
-            overlapBmp = null; // not match
+    /**
+     * Draw the tiles of the current level over the sampled bitmap, the ones not
+     * decoded yet are filled by the best tiles of other levels.
+     */
+    private void drawTiles(Canvas canvas) {
+        // the previous frame is replaced
+        clearDrawnTiles();
+        if (tileGrid == null || tileSampleSize == 0)
+            return;
+        computeVisibleTiles(tileSampleSize, visibleTiles);
+        for (int row = visibleTiles.top; row < visibleTiles.bottom; ++row) {
+            for (int col = visibleTiles.left; col < visibleTiles.right; ++col) {
+                Tile tile = tileGrid.getTile(tileSampleSize, col, row);
+                if (tile.bitmap != null)
+                    drawTile(canvas, tile, tile);
+                else
+                    drawFallbackTiles(canvas, tile);
+            }
+        }
+    }
 
-            // continue decrease velocity
-            if (mode == NONE)
-                invalidate();
+    private void clearDrawnTiles() {
+        for (int i = drawnTiles.size() - 1; i >= 0; --i) {
+            drawnTiles.get(i).drawn = false;
         }
+        drawnTiles.clear();
     }
 
-    private void drawOverlapImg(Canvas canvas) {
-        if (overlapBmp != null) {
-            canvas.drawBitmap(overlapBmp, null, overlapBmpDstRect, bmpPaint);
+    /** Fill the area of a missing tile by the decoded ones of other levels. */
+    private void drawFallbackTiles(Canvas canvas, Tile tile) {
+        // the nearest coarser one covers it all
+        for (int sampleSize = tile.sampleSize * 2; sampleSize <= TileGrid.MAX_SAMPLE_SIZE; sampleSize *= 2) {
+            int ratio = sampleSize / tile.sampleSize;
+            Tile parent = tileGrid.peekTile(sampleSize, tile.col / ratio, tile.row / ratio);
+            if (parent != null && parent.bitmap != null) {
+                drawTile(canvas, parent, tile);
+                break;
+            }
+        }
+        // then the finer ones, e.g. after zooming out
+        if (tile.sampleSize > 1) {
+            int sampleSize = tile.sampleSize / 2;
+            for (int row = tile.row * 2; row < tile.row * 2 + 2; ++row) {
+                for (int col = tile.col * 2; col < tile.col * 2 + 2; ++col) {
+                    Tile child = tileGrid.peekTile(sampleSize, col, row);
+                    if (child != null && child.bitmap != null)
+                        drawTile(canvas, child, child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Draw the part of a decoded tile which is in the area of another tile. The tile
+     * bitmap is rotated by the canvas, so it's never copied.
+     * @param area tile itself, or a tile within it.
+     */
+    private void drawTile(Canvas canvas, Tile tile, Tile area) {
+        if (!mapTile(area, tileDstRect))
+            return;
+        TileCache.getInstance().touch(tile);
+        if (!tile.drawn) {
+            tile.drawn = true;
+            drawnTiles.add(tile);
         }
+        final int rotation = tile.grid.rotation;
+        // the part in the upright tile
+        int left = (area.rect.left - tile.rect.left) / tile.sampleSize;
+        int top = (area.rect.top - tile.rect.top) / tile.sampleSize;
+        int right = (area.rect.right - tile.rect.left + tile.sampleSize - 1) / tile.sampleSize;
+        int bottom = (area.rect.bottom - tile.rect.top + tile.sampleSize - 1) / tile.sampleSize;
+        if (rotation == 0) {
+            tileSrcRect.set(left, top, right, bottom);
+            canvas.drawBitmap(tile.bitmap, tileSrcRect, tileDstRect, bmpPaint);
+            return;
+        }
+
+        // the same part in the bitmap, which is rotated clockwise to be upright
+        final int width = tile.bitmap.getWidth(), height = tile.bitmap.getHeight();
+        switch (rotation) {
+            case 90:
+                tileSrcRect.set(top, height - right, bottom, height - left);
+                break;
+            case 180:
+                tileSrcRect.set(width - right, height - bottom, width - left, height - top);
+                break;
+            default: // 270
+                tileSrcRect.set(width - bottom, left, width - top, right);
+                break;
+        }
+        // then draw it unrotated, centered at the same point
+        final float cx = tileDstRect.centerX(), cy = tileDstRect.centerY();
+        if (rotation == 180) {
+            tileRotatedDstRect.set(tileDstRect);
+        } else {
+            final float halfWidth = tileDstRect.height() / 2, halfHeight = tileDstRect.width() / 2;
+            tileRotatedDstRect.set(cx - halfWidth, cy - halfHeight, cx + halfWidth, cy + halfHeight);
+        }
+        canvas.save();
+        canvas.rotate(rotation, cx, cy);
+        canvas.drawBitmap(tile.bitmap, tileSrcRect, tileRotatedDstRect, bmpPaint);
+        canvas.restore();
+    }
+
+    /**
+     * Where a tile is on the view.
+     * @return false if the image size is unknown.
+     */
+    private boolean mapTile(Tile tile, RectF out) {
+        if (imgWidth <= 0 || origImgWidth <= 0)
+            return false;
+        matrix.getValues(m);
+        // view pixels per original pixel
+        float scale = m[Matrix.MSCALE_X] * imgWidth / origImgWidth;
+        out.set(tile.rect);
+        out.left = out.left * scale + m[Matrix.MTRANS_X];
+        out.right = out.right * scale + m[Matrix.MTRANS_X];
+        out.top = out.top * scale + m[Matrix.MTRANS_Y];
+        out.bottom = out.bottom * scale + m[Matrix.MTRANS_Y];
+        return true;
     }
 
-    private boolean isInertiaStopped() {
-        final float nextDeltaX = lastDelta.x * velocity, nextDeltaY = lastDelta.y * velocity;
-        return Math.abs(nextDeltaX) < 1 && Math.abs(nextDeltaY) < 1;
+    /**
+     * Column and row range of the tiles at given sample size that intersect the view.
+     */
+    private void computeVisibleTiles(int sampleSize, Rect out) {
+        matrix.getValues(m);
+        float scale = m[Matrix.MSCALE_X] * imgWidth / origImgWidth;
+        computeTiles(sampleSize, -m[Matrix.MTRANS_X] / scale, -m[Matrix.MTRANS_Y] / scale,
+                viewWidth / scale, viewHeight / scale, out);
+    }
+
+    /**
+     * Column and row range of the tiles at given sample size that intersect an area of
+     * the upright original image.
+     */
+    private void computeTiles(int sampleSize, float x, float y, float width, float height, Rect out) {
+        float left = Math.max(0, x);
+        float top = Math.max(0, y);
+        float right = Math.min(origImgWidth, x + width);
+        float bottom = Math.min(origImgHeight, y + height);
+        int span = TileGrid.span(sampleSize);
+        out.left = (int) (left / span);
+        out.top = (int) (top / span);
+        out.right = Math.min(tileGrid.getColumnCount(sampleSize), (int) Math.ceil(right / span));
+        out.bottom = Math.min(tileGrid.getRowCount(sampleSize), (int) Math.ceil(bottom / span));
+        if (out.right < out.left)
+            out.right = out.left;
+        if (out.bottom < out.top)
+            out.bottom = out.top;
+    }
+
+    /** Set the scale and translation of the image at once. */
+    private void zoomTo(float scale, float transX, float transY) {
+        float factor = scale / saveScale;
+        matrix.postScale(factor, factor);
+        matrix.getValues(m);
+        m[Matrix.MTRANS_X] = transX;
+        m[Matrix.MTRANS_Y] = transY;
+        matrix.setValues(m);
+        saveScale = scale;
+        calcPadding();
+        checkSiding();
     }
 
     private void checkAndSetTranslate(float deltaX, float deltaY)
@@ -590,28 +795,65 @@ public class TouchImageView extends ImageView {
             matrix.postTranslate(0, -(matrixY + outsideYSpace / 2));
     }
 
+    /**
+     * The given matrix works on the upright image, the bitmap rotation is prepended.
+     */
+    @Override
+    public void setImageMatrix(Matrix matrix) {
+        if (bmpRotation != 0) {
+            drawMatrix.set(matrix);
+            drawMatrix.preConcat(rotationMatrix);
+            super.setImageMatrix(drawMatrix);
+        } else {
+            super.setImageMatrix(matrix);
+        }
+    }
+
     @Override
     public void setImageBitmap(Bitmap bm) {
         setImageBitmap(bm, null);
     }
 
     public void setImageBitmap(Bitmap bm, BitmapRegionDecodingDelegate decoder) {
+        setImageBitmap(bm, decoder, 0);
+    }
+
+    /**
+     * @param decoder its regions are upright.
+     * @param rotation clockwise degrees to turn the bitmap upright, a multiple of 90.
+     */
+    public void setImageBitmap(Bitmap bm, BitmapRegionDecodingDelegate decoder, int rotation) {
+        animator.stop();
+        bmpRotation = rotation;
+        rotationMatrix.setRotate(rotation);
+        if (rotation == 90)
+            rotationMatrix.postTranslate(bm.getHeight(), 0);
+        else if (rotation == 180)
+            rotationMatrix.postTranslate(bm.getWidth(), bm.getHeight());
+        else if (rotation == 270)
+            rotationMatrix.postTranslate(0, bm.getWidth());
+
         super.setImageBitmap(bm);
-        imgWidth = bm.getWidth();
-        imgHeight = bm.getHeight();
+        if (rotation == 90 || rotation == 270) {
+            imgWidth = bm.getHeight();
+            imgHeight = bm.getWidth();
+        } else {
+            imgWidth = bm.getWidth();
+            imgHeight = bm.getHeight();
+        }
         regionDecoder = decoder;
 
+        // tiles of the old image
+        releaseTiles();
         if (regionDecoder != null) {
             origImgWidth = regionDecoder.getWidth();
             origImgHeight = regionDecoder.getHeight();
+            tileGrid = new TileGrid(regionDecoder);
         } else {
             origImgWidth = origImgHeight = 0;
         }
 
         resetMatrix();
-
-        // clear overlap bmp
-        overlapBmp = null;
         invalidate();
     }
 
@@ -679,10 +921,6 @@ public class TouchImageView extends ImageView {
         resetMaxScale();
     }
 
-    private double distanceBetween(PointF left, PointF right)
-    {
-        return Math.sqrt(Math.pow(left.x - right.x, 2) + Math.pow(left.y - right.y, 2));
-    }
     /** Determine the space between the first two fingers */
     private float spacing(WrapMotionEvent event) {
         // ...
@@ -698,164 +936,145 @@ public class TouchImageView extends ImageView {
         float y = event.getY(0) + event.getY(1);
         point.set(x / 2, y / 2);
     }
-    private PointF midPointF(WrapMotionEvent event) {
-        // ...
-        float x = event.getX(0) + event.getX(1);
-        float y = event.getY(0) + event.getY(1);
-        return new PointF(x / 2, y / 2);
-    }
 
-    private static boolean rectEquals(Rect a, Rect b) {
-        return a.top == b.top && a.right == b.right
-                && a.bottom == b.bottom && a.left == b.left;
+    /**
+     * The tile level of current scale.
+     * @return 0 if the sampled bitmap is good enough.
+     */
+    private int computeTileSampleSize() {
+        final float subsampleRate = origImgWidth / imgWidth;
+        matrix.getValues(m);
+        if (subsampleRate <= 1 || m[Matrix.MSCALE_X] <= 1.1f)
+            return 0;
+
+        // original pixels per view pixel
+        final float density = subsampleRate / m[Matrix.MSCALE_X];
+        int sampleSize = 1;
+        while (sampleSize * 2 < subsampleRate && density > sampleSize * 2
+                && sampleSize < TileGrid.MAX_SAMPLE_SIZE) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
     }
 
+    /**
+     * Pick the tile level of current scale, then decode the visible tiles that are
+     * missing. Decodings of the tiles no longer visible are cancelled.
+     */
     private void clipBmpRegion() {
-        if (regionDecoder == null)
+        if (tileGrid == null)
             return;
 
-        final float subsampleRate = origImgWidth / imgWidth;
-
-        if (subsampleRate <= 1)
+        final int sampleSize = computeTileSampleSize();
+        if (sampleSize == 0) {
+            tileSampleSize = 0;
+            cancelTileDecoding(false);
             return;
+        }
 
-        matrix.getValues(m);
-
-        //Log.d(TAG, "---------------");
-        //Log.d(TAG, "savedScale = " + saveScale
-        //        + ", matrix scale = " + m[Matrix.MSCALE_X]
-        //        + ", subsample rate = " + subsampleRate);
-
-        RectF rect;
-        // rect1
-        rect = new RectF();
-        rect.left = -m[Matrix.MTRANS_X];
-        rect.top = -m[Matrix.MTRANS_Y];
-        rect.right = rect.left + viewWidth;
-        rect.bottom = rect.top + viewHeight;
-        //Log.d(TAG, String.format("rect 1 = %d,%d %d*%d of canvas",
-        //        (int)rect.left, (int)rect.top, (int)rect.viewWidth(), (int)rect.height()));
-
-        // rect2
-        rect.left /= m[Matrix.MSCALE_X];
-        rect.top /= m[Matrix.MSCALE_Y];
-        rect.right /= m[Matrix.MSCALE_X];
-        rect.bottom /= m[Matrix.MSCALE_Y];
-        //Log.d(TAG, String.format("rect 2 = %d,%d %d*%d of background image (%d*%d) ",
-        //        (int)rect.left, (int)rect.top, (int)rect.viewWidth(), (int)rect.height(),
-        //        (int)imgWidth, (int)imgHeight));
-
-        // rect3
-        rect.left *= subsampleRate;
-        rect.right *= subsampleRate;
-        rect.top *= subsampleRate;
-        rect.bottom *= subsampleRate;
-        //Log.d(TAG, String.format("rect 3 = %d,%d %d*%d of original image (%d*%d)",
-        //        (int)rect.left, (int)rect.top, (int)rect.viewWidth(), (int)rect.height(),
-        //        origImgWidth, origImgHeight));
-
-
-        final Rect visibleRect = new Rect((int)rect.left, (int)rect.top, (int)rect.right, (int)rect.bottom);
-
-        if (!rectEquals(currVisibleRegion, visibleRect) || overlapBmp == null) {
-            if (m[Matrix.MSCALE_X] > 1.1f) {
-
-                currVisibleRegion = visibleRect;
-
-                final BitmapFactory.Options opt = new BitmapFactory.Options();
-
-                opt.inSampleSize = 1;
-                int halfWidth = visibleRect.width() / 2;
-                int halfHeight = visibleRect.height() / 2;
-                while (opt.inSampleSize * 2 < subsampleRate
-                        && halfWidth > viewWidth * opt.inSampleSize
-                        && halfHeight > viewHeight * opt.inSampleSize) {
-                    opt.inSampleSize *= 2;
-                }
-
-                //Log.d(TAG, String.format("clip region %d,%d %d*%d with inSampleSize=%d",
-                //        visibleRect.left,
-                //        visibleRect.top,
-                //        visibleRect.viewWidth(),
-                //        visibleRect.height(),
-                //        opt.inSampleSize));
-
+        tileSampleSize = sampleSize;
+        computeVisibleTiles(sampleSize, visibleTiles);
+        cancelTileDecoding(true);
 
-                if (visibleRect.top < 0) {
-                    float heightScale = ((float)visibleRect.height() + 2 * visibleRect.top) / visibleRect.height();
-                    overlapBmpDstRect.top = (int) (-visibleRect.top / subsampleRate * m[Matrix.MSCALE_Y]);
-                    overlapBmpDstRect.bottom = overlapBmpDstRect.top + (int) (viewHeight * heightScale);
+        requestTiles(sampleSize, visibleTiles);
+    }
 
-                    visibleRect.bottom += visibleRect.top;
-                    visibleRect.top = 0;
-                } else {
-                    overlapBmpDstRect.top = 0;
-                    overlapBmpDstRect.bottom = (int) viewHeight;
-                }
+    /**
+     * Decode the tiles where a fling is going to pass and stop, while it's still
+     * moving, so the image is sharp once it stops. Nothing is cancelled here, the
+     * tiles left behind are cancelled by {@link #clipBmpRegion()} when it stops.
+     */
+    private void prefetchFlingTiles() {
+        if (tileGrid == null || imgWidth <= 0 || origImgWidth <= 0)
+            return;
+        final int sampleSize = computeTileSampleSize();
+        if (sampleSize == 0)
+            return;
 
-                if (visibleRect.left < 0) {
-                    float widthScale = ((float)visibleRect.width() + 2 * visibleRect.left) / visibleRect.width();
-                    overlapBmpDstRect.left = (int) (- visibleRect.left / subsampleRate * m[Matrix.MSCALE_X]);
-                    overlapBmpDstRect.right = overlapBmpDstRect.left + (int) (viewWidth * widthScale);
+        matrix.getValues(m);
+        final float scale = m[Matrix.MSCALE_X] * imgWidth / origImgWidth;
+        final float x = -m[Matrix.MTRANS_X] / scale, y = -m[Matrix.MTRANS_Y] / scale;
+        final float width = viewWidth / scale, height = viewHeight / scale;
+
+        // the viewport moves the other way
+        float endX = x - animator.getRemainingFlingX() / scale;
+        float endY = y - animator.getRemainingFlingY() / scale;
+        // the translation is bounded by the image edges
+        endX = Math.max(Math.min(endX, origImgWidth - width), Math.min(x, 0));
+        endY = Math.max(Math.min(endY, origImgHeight - height), Math.min(y, 0));
+        if (Math.abs(endX - x) * scale < 1 && Math.abs(endY - y) * scale < 1)
+            return;
 
-                    visibleRect.right += visibleRect.left;
-                    visibleRect.left = 0;
-                } else {
-                    overlapBmpDstRect.left = 0;
-                    overlapBmpDstRect.right = (int) viewWidth;
-                }
+        // the end first, it's where the tiles are looked at
+        computeTiles(sampleSize, endX, endY, width, height, tileRange);
+        requestTiles(sampleSize, tileRange);
+
+        // then the way there, about a viewport apart
+        final float distance = Math.max(Math.abs(endX - x) / width, Math.abs(endY - y) / height);
+        final int steps = Math.min((int) Math.ceil(distance), MAX_FLING_PREFETCH_STEPS + 1);
+        for (int i = 1; i < steps; ++i) {
+            final float t = (float) i / steps;
+            computeTiles(sampleSize, x + (endX - x) * t, y + (endY - y) * t, width, height, tileRange);
+            requestTiles(sampleSize, tileRange);
+        }
+    }
 
-                overlapBmp = null;
-
-                // check IllegalArgumentException("rectangle is outside the image");
-                if (!(visibleRect.right <= 0 || visibleRect.bottom <= 0 || visibleRect.left >= origImgWidth || visibleRect.top >= origImgHeight)) {
-                    // decode region async
-                    Message msg = new Message();
-                    msg.what = WorkThread.MSG_DECODE_REGION;
-                    msg.arg1 = (int) (Math.random() * 100000); // random code
-                    msg.obj = new Runnable() {
-                        @Override
-                        public void run() {
-                            overlapBmp = regionDecoder.decodeRegion(visibleRect, opt);
-                            if (overlapBmp != null) {
-                                Log.d(TAG, String.format("overlapBmp, %dx%d, src rect %s, dst rect %s",
-                                        overlapBmp.getWidth(), overlapBmp.getHeight(), visibleRect, overlapBmpDstRect));
-
-                                // dump for testing
-                                if (false) dumpOverlapBmp();
-                            }
-                        }
-                    };
-                    workThread.removeMessage(msg.what);
-                    workThread.sendMessage(msg);
+    /**
+     * Decode the tiles of a range at given sample size that are missing.
+     */
+    private void requestTiles(int sampleSize, Rect range) {
+        TileCache cache = TileCache.getInstance();
+        long now = SystemClock.uptimeMillis();
+        for (int row = range.top; row < range.bottom; ++row) {
+            for (int col = range.left; col < range.right; ++col) {
+                Tile tile = tileGrid.getTile(sampleSize, col, row);
+                if (tile.bitmap != null) {
+                    cache.touch(tile);
+                } else if (tile.task == null && tile.canDecode(now)) {
+                    // decode tile async, in parallel with the others
+                    Tile.DecodeTask task = tile.newTask(tilePriority,
+                            uiHandler.obtainMessage(UIHandler.MSG_TILE_DECODED));
+                    decodingTiles.add(tile);
+                    ImageLoaderScheduler.getInstance().getRegionExecutor().execute(task);
                 }
-            } else {
-                overlapBmp = null;
             }
         }
     }
 
-    private static boolean scaleEqual(float s1, float s2) {
-        return Math.abs(s1 - s2) < 0.01;
-    }
+    private class AnimationTarget implements TouchAnimator.Target {
+        @Override
+        public boolean translateBy(float dx, float dy) {
+            matrix.getValues(m);
+            final float x = m[Matrix.MTRANS_X], y = m[Matrix.MTRANS_Y];
+            checkAndSetTranslate(dx, dy);
+            matrix.getValues(m);
+            // blocked by the edges
+            return Math.abs(dx) < 0.5f && Math.abs(dy) < 0.5f
+                    || Math.abs(m[Matrix.MTRANS_X] - x) >= 0.5f || Math.abs(m[Matrix.MTRANS_Y] - y) >= 0.5f;
+        }
 
-    private void dumpOverlapBmp() {
-        try {
-            OutputStream os = new FileOutputStream(new File(
-                    Environment.getExternalStorageDirectory() +
-                            "/" + Environment.DIRECTORY_PICTURES +
-                            "/overlap.jpg"));
-            overlapBmp.compress(Bitmap.CompressFormat.JPEG, 100, os);
-            os.close();
+        @Override
+        public void zoomTo(float scale, float transX, float transY) {
+            TouchImageView.this.zoomTo(scale, transX, transY);
         }
-        catch (FileNotFoundException e) {
-            e.printStackTrace();
+
+        @Override
+        public void applyMatrix() {
+            setImageMatrix(matrix);
+            invalidate();
         }
-        catch (IOException e) {
-            e.printStackTrace();
+
+        @Override
+        public void onAnimationEnd() {
+            if (mode == NONE)
+                clipBmpRegion();
         }
     }
 
+    private static boolean scaleEqual(float s1, float s2) {
+        return Math.abs(s1 - s2) < 0.01;
+    }
+
     @Override
     public void setOnClickListener(OnClickListener l) {
         mOnClickListener = l;
@@ -943,11 +1162,19 @@ public class TouchImageView extends ImageView {
 	}
 
     /**
-     * Like {@link BitmapRegionDecoder}.
+     * Like {@link BitmapRegionDecoder}, of an image that may be rotated.
      */
     public interface BitmapRegionDecodingDelegate {
+        /**
+         * @param rect region of the upright image.
+         * @return pixels of the region as stored, to be rotated by {@link #getRotation()}.
+         */
         Bitmap decodeRegion(Rect rect, BitmapFactory.Options options);
+        /** Height of the upright image. */
         int getHeight();
+        /** Width of the upright image. */
         int getWidth();
+        /** Clockwise degrees, 0, 90, 180 or 270. */
+        int getRotation();
     }
 }
@@ -21,8 +21,6 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
-import android.media.ExifInterface;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.text.TextUtils;
@@ -32,13 +30,10 @@ import android.widget.ImageView.ScaleType;
 import android.widget.ProgressBar;
 import android.widget.RelativeLayout;
 import ru.truba.touchgallery.R;
-import ru.truba.touchgallery.TouchView.InputStreamWrapper.InputStreamProgressListener;
 
 import java.io.*;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
-import java.util.LinkedList;
 import java.util.concurrent.Executor;
 
 public class UrlTouchImageView extends RelativeLayout {
@@ -48,19 +43,26 @@ public class UrlTouchImageView extends RelativeLayout {
 
     protected Context mContext;
     protected Bitmap mBmp;
+    /** {@link BitmapMemoryCache} key of mBmp. */
+    protected String mBmpKey;
+    protected int mBmpMaxWidth;
+    /** Region decoder of mBmp, maybe null. */
+    protected RotationBitmapRegionDecoder mRegionDecoder;
+    /** Url of mBmp, null if none or no_photo. */
+    protected URL mBmpUrl;
+    /** Of mBmp, null if unknown, e.g. taken from the memory cache. */
+    protected ImageMetadata mMetadata;
+    /** Shown while downloading, a {@link BitmapMemoryCache} reference. */
+    protected Bitmap mPreviewBmp;
     public static int bmpCnt = 0;
 
-    LinkedList<String> cachedFiles = new LinkedList<>();
     private ImageLoadTask loadTask;
-
-    private Executor networkExecutor = new Executor()
-    {
-        @Override
-        public void execute(Runnable runnable)
-        {
-            new Thread(runnable).start();
-        }
-    };
+    private ImageDownloader.Subscription downloadSubscription;
+    /**
+     * Of the fetching and decoding, see {@link #setLoadPriority(int)}. The same as the
+     * current page, unless ranked by a pager.
+     */
+    private int loadPriority = 0;
 
     public UrlTouchImageView(Context ctx)
     {
@@ -108,39 +110,314 @@ public class UrlTouchImageView extends RelativeLayout {
     public void setUrl(URL imageUrl, int maxWidth, int maxHeight, boolean enableTouchAfterDone)
     {
 //        Log.d(TAG, String.format("setUrl(%s, %d, %d), touchEnabled=%s", imageUrl, maxWidth, maxHeight, enableTouchAfterDone));
-        if (loadTask != null && !loadTask.finished && TextUtils.equals(
-                loadTask.url.toExternalForm(),
-                imageUrl.toExternalForm())) {
+        String memKey = BitmapMemoryCache.keyOf(imageUrl, maxWidth, maxHeight);
+        if (mBmp != null && memKey.equals(mBmpKey)) {
+            // already showing it
+            cancelLoading();
+            loadTask = null;
+            if (enableTouchAfterDone)
+                mImageView.touchEnabled = true;
+            return;
+        }
+
+        // decoded by any view before?
+        Bitmap cached = BitmapMemoryCache.getInstance().acquire(memKey);
+        if (cached != null) {
+            cancelLoading();
+            loadTask = null;
+            showBitmap(cached, BitmapMemoryCache.getInstance().getRegionDecoder(memKey),
+                    BitmapMemoryCache.getInstance().getRotation(memKey), memKey, imageUrl, null,
+                    maxWidth, enableTouchAfterDone);
+            return;
+        }
+
+        // a downscaling can't be given another size
+        if (loadTask != null && !loadTask.finished && !loadTask.isCancelled() && loadTask.source == null
+                && TextUtils.equals(loadTask.url.toExternalForm(), imageUrl.toExternalForm())) {
             loadTask.setSizeLimit(maxWidth, maxHeight)
                     .setEnableTouchAfterDone(enableTouchAfterDone);
         } else {
-            loadTask = new ImageLoadTask().setSizeLimit(maxWidth, maxHeight)
+            cancelLoading();
+            loadTask = new ImageLoadTask(imageUrl).setSizeLimit(maxWidth, maxHeight)
                     .setEnableTouchAfterDone(enableTouchAfterDone);
-            if (Build.VERSION.SDK_INT > 11) {
-                loadTask.executeOnExecutor(networkExecutor, imageUrl);
+
+            boolean sameImage = isShowing(imageUrl);
+            if (sameImage) {
+                // the current bitmap stays until the new size is ready
+                loadTask.setSourceImage(mMetadata, mRegionDecoder);
+            }
+
+            // remote images go through the downloader, which serves a fresh cached file
+            // or revalidates it off the UI thread, the decoding always goes to the
+            // decode pool.
+            if (sameImage && canDownscale(maxWidth, maxHeight)
+                    && BitmapMemoryCache.getInstance().retain(mBmp)) {
+                // smaller than the current bitmap, no need for the file
+                loadTask.setSource(mBmp, BitmapMemoryCache.getInstance().getRotation(mBmpKey));
+                executeOnDecodePool(loadTask);
+            } else if (!imageUrl.getProtocol().equals("file")) {
+                mImageView.touchEnabled = false; // suspend touch
+                downloadSubscription = ImageDownloader.getInstance(mContext)
+                        .fetch(imageUrl, loadPriority, new DownloadListener(loadTask));
             } else {
-                loadTask.execute(imageUrl);
+                executeOnDecodePool(loadTask);
             }
         }
     }
 
+    /**
+     * Rank the loading among the other ones, lower first, e.g. the distance from the
+     * current page. Also moves the fetching or decoding already queued.
+     */
+    public void setLoadPriority(int priority) {
+        if (priority == loadPriority)
+            return;
+        loadPriority = priority;
+        if (downloadSubscription != null)
+            downloadSubscription.setPriority(priority);
+        if (loadTask != null && loadTask.queued != null)
+            loadTask.queued.setPriority(ImageLoaderScheduler.getInstance().getDecodeExecutor(), priority);
+    }
+
+    public int getLoadPriority() {
+        return loadPriority;
+    }
+
+    /** Cancel the fetching and decoding in progress, if any. */
+    public void cancelLoading() {
+        if (downloadSubscription != null) {
+            // the transfer goes on if other views are waiting for it
+            downloadSubscription.cancel();
+            downloadSubscription = null;
+        }
+        if (loadTask != null && !loadTask.finished) {
+            loadTask.cancel(false);
+            // don't let it take a place in the queue
+            if (loadTask.queued != null)
+                ImageLoaderScheduler.getInstance().getDecodeExecutor().remove(loadTask.queued);
+        }
+    }
+
+    private static void executeOn(AsyncTask<Void, ?, ?> task, Executor executor) {
+        if (Build.VERSION.SDK_INT > 11) {
+            task.executeOnExecutor(executor);
+        } else {
+            task.execute();
+        }
+    }
+
+    /** Queue the task with the current {@link #loadPriority}. */
+    private void executeOnDecodePool(final ImageLoadTask task) {
+        executeOn(task, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                task.queued = PriorityRunnable.wrap(runnable, loadPriority);
+                ImageLoaderScheduler.getInstance().getDecodeExecutor().execute(task.queued);
+            }
+        });
+    }
+
+    /** A bitmap of the url is shown, not the no_photo placeholder. */
+    private boolean isShowing(URL url) {
+        return mBmp != null && mBmpUrl != null
+                && TextUtils.equals(mBmpUrl.toExternalForm(), url.toExternalForm());
+    }
+
+    /**
+     * The current bitmap can be scaled down in memory to the given size limit, a HARDWARE
+     * one too, see {@link ImageLoadTask#downscale(Bitmap, int, int)}.
+     */
+    private boolean canDownscale(int maxWidth, int maxHeight) {
+        int rotation = BitmapMemoryCache.getInstance().getRotation(mBmpKey);
+        return downscaleFactor(mBmp, rotation, maxWidth, maxHeight) > 1;
+    }
+
+    /**
+     * Like the inSampleSize of a decoding, so the result has the size a decoding would give.
+     * @return 1 if the bitmap fits already.
+     */
+    static int downscaleFactor(Bitmap bitmap, int rotation, int maxWidth, int maxHeight) {
+        if (maxWidth <= 0 || maxHeight <= 0)
+            return 1;
+        boolean swap = rotation == 90 || rotation == 270;
+        return calculateInSampleSize(swap ? bitmap.getHeight() : bitmap.getWidth(),
+                swap ? bitmap.getWidth() : bitmap.getHeight(), maxWidth, maxHeight);
+    }
+
+    /**
+     * Calculate the largest inSampleSize value that is a power of 2 and keeps both
+     * height and width smaller than the requested height and width.
+     *
+     * <p>The order of reqWidth and reqHeight doesn't matter.</p>
+     *
+     * @param width width of upright image
+     * @param height height of upright image
+     * @param reqWidth
+     * @param reqHeight
+     * @return
+     */
+    static int calculateInSampleSize(
+            int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+
+        // swap request width and height
+        if (reqWidth > reqHeight && width < height) {
+            int t = reqWidth;
+            reqWidth = reqHeight;
+            reqHeight = t;
+        }
+
+        if (height > reqHeight || width > reqWidth) {
+
+            // Calculate the largest inSampleSize value that is a power of 2 and keeps both
+            // height and width smaller than the requested height and width.
+            do {
+                inSampleSize *= 2;
+            } while ((height / inSampleSize) > reqHeight
+                    || (width / inSampleSize) > reqWidth);
+        }
+
+        return inSampleSize;
+    }
+
     public int getMaxImageWidth() {
-        return loadTask != null ? loadTask.maxWidth : 0;
+        return loadTask != null ? loadTask.maxWidth : mBmpMaxWidth;
+    }
+
+    /**
+     * Display a bitmap, replacing the current one.
+     * @param bitmap null to display no_photo.
+     * @param rotation EXIF rotation, applied by the view.
+     * @param memKey {@link BitmapMemoryCache} key of the bitmap, the reference held
+     *               by the caller is taken over.
+     * @param metadata of the image, maybe null.
+     */
+    private void showBitmap(Bitmap bitmap, RotationBitmapRegionDecoder regionDecoder, int rotation,
+                            String memKey, URL url, ImageMetadata metadata,
+                            int maxWidth, boolean touchEnabledAfterDone) {
+        if (regionDecoder != null && regionDecoder == mRegionDecoder) {
+            // same image at another size, keep its decoders open
+            mRegionDecoder = null;
+        }
+        // recycle old
+        recycleBmp();
+
+        if (bitmap != null) {
+            ++bmpCnt;
+            Log.i(TAG, "show bmp, " + bitmap.getWidth() + "x" + bitmap.getHeight() + ", bmp cnt = " + bmpCnt);
+        }
+
+        if (bitmap == null)
+        {
+            mImageView.setScaleType(ScaleType.CENTER);
+            bitmap = BitmapFactory.decodeResource(getResources(), R.drawable.no_photo);
+            mImageView.setImageBitmap(bitmap, null);
+            memKey = null;
+            url = null;
+            metadata = null;
+        }
+        else
+        {
+            mImageView.setScaleType(ScaleType.MATRIX);
+            mImageView.setImageBitmap(bitmap, regionDecoder, rotation);
+        }
+        mImageView.setVisibility(VISIBLE);
+        mProgressBar.setVisibility(GONE);
+        if (touchEnabledAfterDone)
+            mImageView.touchEnabled = touchEnabledAfterDone;
+
+        mBmp = bitmap;
+        mBmpKey = memKey;
+        mRegionDecoder = regionDecoder;
+        mBmpUrl = url;
+        mMetadata = metadata;
+        mBmpMaxWidth = maxWidth;
     }
 
     public void setScaleType(ScaleType scaleType) {
         mImageView.setScaleType(scaleType);
     }
     
-    //No caching load
-    public class ImageLoadTask extends AsyncTask<URL, Integer, Bitmap>
+    /**
+     * Receive the shared download of a remote image, then submit the owner
+     * {@link ImageLoadTask} to the decode pool.
+     */
+    private class DownloadListener implements ImageDownloader.Listener
+    {
+        final ImageLoadTask owner;
+
+        DownloadListener(ImageLoadTask owner) {
+            this.owner = owner;
+        }
+
+        @Override
+        public void onProgress(float progressValue, long bytesLoaded, long bytesTotal) {
+            mProgressBar.setProgress((int) (progressValue * 100));
+        }
+
+        @Override
+        public void onPreview(Bitmap preview, int rotation) {
+            // useless once the final decoding has started, or if the image is
+            // shown already, e.g. while a stale version is fetched again
+            if (loadTask != owner || owner.getStatus() != AsyncTask.Status.PENDING || isShowing(owner.url)) {
+                BitmapMemoryCache.getInstance().release(preview);
+                return;
+            }
+            // the old image and the previous preview are replaced
+            recycleBmp();
+            mPreviewBmp = preview;
+            mImageView.setScaleType(ScaleType.MATRIX);
+            mImageView.setImageBitmap(preview, null, rotation);
+            mImageView.setVisibility(VISIBLE);
+        }
+
+        @Override
+        public void onComplete(File file) {
+            ImageDownloader.Subscription subscription = downloadSubscription;
+            downloadSubscription = null;
+            // even on failure, let the load task finish so that no_photo is shown
+            if (loadTask == owner) {
+                owner.downloaded = file != null;
+                owner.fileChanged = subscription != null && subscription.isNewFile();
+                executeOnDecodePool(owner);
+            }
+        }
+    }
+
+    /**
+     * Decode an image that is available locally, on the decode pool.
+     *
+     * <p>To change the size of the image being shown, a smaller one is scaled down from
+     * the current bitmap, see {@link #setSource(Bitmap, int)}, and a larger one is decoded
+     * reusing its metadata and region decoder, see {@link #setSourceImage}.</p>
+     */
+    public class ImageLoadTask extends AsyncTask<Void, Integer, Bitmap>
     {
-        public URL url;
+        public final URL url;
         public boolean finished;
         int maxWidth;
         int maxHeight;
         RotationBitmapRegionDecoder regionDecoder;
+        /** The result is not rotated, the view does. */
+        int rotation;
+        /** {@link BitmapMemoryCache} key of the result. */
+        String memKey;
         boolean touchEnabledAfterDone;
+        /** Fetched right before, so don't count it as a cache hit. */
+        volatile boolean downloaded;
+        /** The download replaced the file, the metadata and decoders of the source image are outdated. */
+        volatile boolean fileChanged;
+        /** In the decode pool, null before. */
+        PriorityRunnable queued;
+        /** Metadata of the image, maybe null. */
+        ImageMetadata metadata;
+        /** To scale down instead of decoding, a reference taken by {@link #takeSource()}. */
+        private Bitmap source;
+        private int sourceRotation;
+
+        ImageLoadTask(URL url) {
+            this.url = url;
+        }
 
         public ImageLoadTask setSizeLimit(int w, int h) {
             maxWidth = w;
@@ -153,6 +430,30 @@ public class UrlTouchImageView extends RelativeLayout {
             return this;
         }
 
+        /**
+         * The image is being shown at another size, don't parse its header nor open its
+         * file again.
+         */
+        void setSourceImage(ImageMetadata metadata, RotationBitmapRegionDecoder regionDecoder) {
+            this.metadata = metadata;
+            this.regionDecoder = regionDecoder;
+        }
+
+        /**
+         * @param source a {@link BitmapMemoryCache} reference, taken over.
+         */
+        void setSource(Bitmap source, int rotation) {
+            this.source = source;
+            this.sourceRotation = rotation;
+        }
+
+        /** Either the decoding or the cancellation gives it back. */
+        private synchronized Bitmap takeSource() {
+            Bitmap bitmap = source;
+            source = null;
+            return bitmap;
+        }
+
         @Override
         protected void onPreExecute() {
             super.onPreExecute();
@@ -161,67 +462,83 @@ public class UrlTouchImageView extends RelativeLayout {
 
         @TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
         @Override
-        protected Bitmap doInBackground(URL... urls) {
-            url = urls[0];
-            finished = false;
+        protected Bitmap doInBackground(Void... params) {
             Bitmap bm = null;
 
             if (url == null)
                 return bm;
 
+            // the size limit may be changed meanwhile
+            final int maxWidth = this.maxWidth, maxHeight = this.maxHeight;
+            memKey = BitmapMemoryCache.keyOf(url, maxWidth, maxHeight);
+            BitmapMemoryCache memoryCache = BitmapMemoryCache.getInstance();
+            bm = memoryCache.acquire(memKey);
+            if (bm != null) {
+                regionDecoder = memoryCache.getRegionDecoder(memKey);
+                rotation = memoryCache.getRotation(memKey);
+                return bm;
+            }
+
+            Bitmap source = takeSource();
+            if (source != null) {
+                try {
+                    bm = downscale(source, maxWidth, maxHeight);
+                } finally {
+                    memoryCache.release(source);
+                }
+                if (bm != null) {
+                    rotation = sourceRotation;
+                    memoryCache.put(memKey, bm, regionDecoder, rotation);
+                    return bm;
+                }
+            }
+
             try {
                 // although a URL of file protocol can also be handled properly by
                 // stream, to avoid temp file, we decode local file without using
                 // stream.
-                if (url.getProtocol().equals("file")) {
-                    int rotationDegress = getRotationDegress(url.getFile());
-                    bm = decodeBmp(url.getFile(), rotationDegress);
-                    if (Build.VERSION.SDK_INT >= 10) {
-                        regionDecoder = RotationBitmapRegionDecoder.newInstance(url.getFile());
-                        if (rotationDegress != 0)
-                            regionDecoder.setRotation(rotationDegress);
-                    }
+                boolean isLocal = url.getProtocol().equals("file");
+                File file;
+                ImageMetadata metadata = this.metadata;
+                if (isLocal) {
+                    file = new File(url.getFile());
                 } else {
-                    String cachePath = getCachePath(url);
-                    int rotationDegress = 0;
-                    if (new File(cachePath).exists()) {
-                        rotationDegress = getRotationDegress(cachePath);
-                        bm = decodeBmp(cachePath, rotationDegress);
+                    ImageDiskCache diskCache = ImageDiskCache.getInstance(mContext);
+                    String key = ImageDiskCache.keyOf(url);
+                    file = downloaded ? diskCache.getFile(key) : diskCache.get(key);
+                    if (metadata == null || fileChanged)
+                        metadata = diskCache.getMetadata(key);
+                    if (metadata == null && file != null && file.exists()) {
+                        // cached before the index existed
+                        metadata = ImageMetadata.read(file);
+                        if (metadata != null)
+                            diskCache.putMetadata(key, metadata);
                     }
-
-                    if (bm == null) {
-                        URLConnection conn = url.openConnection();
-                        conn.connect();
-                        InputStream is = conn.getInputStream();
-                        int totalLen = conn.getContentLength();
-                        InputStreamWrapper bis = new InputStreamWrapper(is, 8192, totalLen);
-                        bis.setProgressListener(new InputStreamProgressListener() {
-                            @Override
-                            public void onProgress(float progressValue, long bytesLoaded,
-                                                   long bytesTotal) {
-                                publishProgress((int) (progressValue * 100));
-                            }
-                        });
-
-                        String downloadPath = getDownloaPath(url);
-                        // download to downloadPath
-                        copy(bis, new File(downloadPath));
-                        // copy to cachePath
-                        new File(downloadPath).renameTo(new File(cachePath));
-                        rotationDegress = getRotationDegress(cachePath);
-                        bm = decodeBmp(cachePath, rotationDegress);
-                        cachedFiles.add(cachePath);
-
-                        bis.close();
-                        is.close();
+                }
+                if (file != null && file.exists()) {
+                    if (metadata == null)
+                        metadata = ImageMetadata.read(file);
+                    String path = file.getPath();
+                    if (metadata != null) {
+                        bm = decodeBmp(path, metadata, maxWidth, maxHeight);
+                        rotation = metadata.rotation;
                     }
-
-                    if (Build.VERSION.SDK_INT >= 10 && bm != null) {
-                        regionDecoder = RotationBitmapRegionDecoder.newInstance(cachePath);
-                        if (rotationDegress != 0)
-                            regionDecoder.setRotation(rotationDegress);
+                    if (fileChanged)
+                        regionDecoder = null; // a newer version
+                    if (Build.VERSION.SDK_INT >= 10 && bm != null && regionDecoder == null) {
+                        // opened lazily, when zoomed in
+                        regionDecoder = RotationBitmapRegionDecoder.newInstance(path, metadata.width, metadata.height);
+                        regionDecoder.setPreferredConfig(DecodeConfigPolicy.getInstance().getRegionConfig(metadata));
+                        if (metadata.rotation != 0)
+                            regionDecoder.setRotation(metadata.rotation);
                     }
+                    // broken cache file, fetch it again next time
+                    if (bm == null && !isLocal)
+                        ImageDiskCache.getInstance(mContext).remove(ImageDiskCache.keyOf(url));
                 }
+                if (bm != null)
+                    memoryCache.put(memKey, bm, regionDecoder, rotation);
+                this.metadata = metadata;
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -229,177 +546,157 @@ public class UrlTouchImageView extends RelativeLayout {
         }
 
         @Override
-        protected void onPostExecute(Bitmap bitmap) {
-            if (bitmap != null) {
-                ++bmpCnt;
-                Log.i(TAG, "decode bmp, " + bitmap.getWidth() + "x" + bitmap.getHeight() + ", bmp cnt = " + bmpCnt);
-            }
-
-            // recycle old
-            recycleBmp();
-
-        	if (bitmap == null)
-        	{
-        		mImageView.setScaleType(ScaleType.CENTER);
-        		bitmap = BitmapFactory.decodeResource(getResources(), R.drawable.no_photo);
-        		mImageView.setImageBitmap(bitmap, null);
-        	}
-        	else 
-        	{
-        		mImageView.setScaleType(ScaleType.MATRIX);
-	            mImageView.setImageBitmap(bitmap, regionDecoder);
-        	}
-            mImageView.setVisibility(VISIBLE);
-            mProgressBar.setVisibility(GONE);
-            if (touchEnabledAfterDone)
-                mImageView.touchEnabled = touchEnabledAfterDone;
+        protected void onCancelled(Bitmap bitmap) {
+            if (bitmap != null)
+                BitmapMemoryCache.getInstance().release(bitmap);
+            // not started
+            Bitmap source = takeSource();
+            if (source != null)
+                BitmapMemoryCache.getInstance().release(source);
+        }
 
-            mBmp = bitmap;
+        @Override
+        protected void onPostExecute(Bitmap bitmap) {
+            showBitmap(bitmap, regionDecoder, rotation, memKey, url, metadata, maxWidth, touchEnabledAfterDone);
             finished = true;
         }
 
-		@Override
-		protected void onProgressUpdate(Integer... values)
-		{
-			mProgressBar.setProgress(values[0]);
-		}
-
-        private void copy(InputStream in, File dst) throws IOException {
-            //Log.d(TAG, "begin download -> " + dst.getAbsolutePath());
-            OutputStream out = new FileOutputStream(dst);
-
-            // Transfer bytes from in to out
-            byte[] buf = new byte[1024];
-            int len;
-            while ((len = in.read(buf)) > 0) {
-                out.write(buf, 0, len);
-                //Log.d(TAG, "download in progress");
-            }
-            in.close();
-            out.close();
-            //Log.d(TAG, "end download");
+        /**
+         * Scale down the bitmap of the same image decoded at a larger size.
+         *
+         * <p>A HARDWARE bitmap can't be drawn by the CPU, so it's copied to a software one
+         * first and the result is copied back, the page stays in graphics memory. The
+         * transient copy still costs less than decoding the file again, and the pages
+         * around the current one needn't be decoded as software bitmaps.</p>
+         *
+         * @return null if it's not larger than the size limit, or can't be read back.
+         */
+        private Bitmap downscale(Bitmap source, int maxWidth, int maxHeight) {
+            int factor = downscaleFactor(source, sourceRotation, maxWidth, maxHeight);
+            if (factor <= 1)
+                return null;
+            boolean hardware = DecodeConfigPolicy.isHardware(source.getConfig());
+            Bitmap software = hardware ? source.copy(Bitmap.Config.ARGB_8888, false) : source;
+            if (software == null)
+                return null; // decoded from the file then
+            Bitmap scaled = Bitmap.createScaledBitmap(software,
+                    Math.max(1, source.getWidth() / factor), Math.max(1, source.getHeight() / factor), true);
+            if (!hardware)
+                return scaled;
+            if (software != scaled)
+                software.recycle();
+            Bitmap result = scaled.copy(source.getConfig(), false);
+            if (result == null)
+                return scaled;
+            scaled.recycle();
+            return result;
         }
 
-        private Bitmap decodeBmp(String filename, int rotationDegress) throws IOException {
-            BitmapFactory.Options options = null;
+        /**
+         * Decode in a single pass, the bitmap is left unrotated for the view to rotate
+         * when drawing, so there's never a rotated copy of it.
+         * @param metadata dimensions and rotation of the file, so no need to parse its header.
+         */
+        private Bitmap decodeBmp(String filename, ImageMetadata metadata, int maxWidth, int maxHeight) throws IOException {
+            BitmapFactory.Options options = new BitmapFactory.Options();
             if (maxWidth > 0 && maxHeight > 0) {
-                // First decode with inJustDecodeBounds=true to check dimensions
-                options = new BitmapFactory.Options();
-                options.inJustDecodeBounds = true;
-                BitmapFactory.decodeFile(filename, options);
-
                 // Calculate inSampleSize
-                options.inSampleSize = calculateInSampleSize(options, maxWidth, maxHeight);
-
-                // Decode bitmap with inSampleSize set
-                options.inJustDecodeBounds = false;
-            }
-
-            Bitmap bmp = BitmapFactory.decodeFile(filename, options);
-
-            // rotate according to Exif
-            //int rotationDegress = getRotationDegress(filename);
-            if (rotationDegress != 0) {
-                return rotateBmp(bmp, rotationDegress);
+                // the limit applies to the upright image
+                options.inSampleSize = calculateInSampleSize(
+                        metadata.getDisplayWidth(), metadata.getDisplayHeight(), maxWidth, maxHeight);
             } else {
-                return bmp;
-            }
-        }
-
-        /**
-         * Calculate the largest inSampleSize value that is a power of 2 and keeps both
-         * height and width smaller than the requested height and width.
-         *
-         * <p>The order of reqWidth and reqHeight doesn't matter.</p>
-         *
-         * @param options
-         * @param reqWidth
-         * @param reqHeight
-         * @return
-         */
-        private int calculateInSampleSize(
-                BitmapFactory.Options options, int reqWidth, int reqHeight) {
-            // Raw height and width of image
-            final int height = options.outHeight;
-            final int width = options.outWidth;
-            int inSampleSize = 1;
-
-            // swap request width and height
-            if (reqWidth > reqHeight && width < height) {
-                int t = reqWidth;
-                reqWidth = reqHeight;
-                reqHeight = t;
+                options.inSampleSize = 1;
             }
 
-            if (height > reqHeight || width > reqWidth) {
-
-                // Calculate the largest inSampleSize value that is a power of 2 and keeps both
-                // height and width smaller than the requested height and width.
-                do {
-                    inSampleSize *= 2;
-                } while ((height / inSampleSize) > reqHeight
-                        || (width / inSampleSize) > reqWidth);
+            // the least memory the image allows
+            DecodeConfigPolicy policy = DecodeConfigPolicy.getInstance();
+            options.inPreferredConfig = policy.getPageConfig(metadata);
+
+            // Decode bitmap with inSampleSize set, into a pooled bitmap if possible
+            int sampleSize = options.inSampleSize;
+            BitmapPool.getInstance().prepareOptions(options,
+                    (metadata.width + sampleSize - 1) / sampleSize,
+                    (metadata.height + sampleSize - 1) / sampleSize);
+
+            Bitmap bm = decodeFile(filename, options);
+            if (bm == null && DecodeConfigPolicy.isHardware(options.inPreferredConfig)) {
+                // not every format can be decoded to graphics memory
+                options.inPreferredConfig = policy.getRegionConfig(metadata);
+                BitmapPool.getInstance().prepareOptions(options,
+                        (metadata.width + sampleSize - 1) / sampleSize,
+                        (metadata.height + sampleSize - 1) / sampleSize);
+                bm = decodeFile(filename, options);
             }
-
-            return inSampleSize;
+            return bm;
         }
     }
 
-    private Bitmap rotateBmp(Bitmap bmp, int rotationDegress) {
-        Matrix matrix = new Matrix();
-        matrix.setRotate(rotationDegress);
-        return Bitmap.createBitmap(bmp, 0, 0, bmp.getWidth(), bmp.getHeight(), matrix, true);
-    }
-
-    private int getRotationDegress(String filename) throws IOException {
-        ExifInterface exif = new ExifInterface(filename);
-        int rotation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
-        return exifToDegrees(rotation);
-    }
-
-    private static int exifToDegrees(int exifOrientation) {
-        if (exifOrientation == ExifInterface.ORIENTATION_ROTATE_90) { return 90; }
-        else if (exifOrientation == ExifInterface.ORIENTATION_ROTATE_180) {  return 180; }
-        else if (exifOrientation == ExifInterface.ORIENTATION_ROTATE_270) {  return 270; }
-        return 0;
-    }
-
-    private String getDownloaPath(URL url) {
-        return getCachePath(getContext(), url) + ".download";
+    /**
+     * Decode with {@link BitmapFactory.Options#inBitmap}, falling back to a new bitmap
+     * if the one from the pool can't be reused.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static Bitmap decodeFile(String filename, BitmapFactory.Options options) {
+        try {
+            return BitmapFactory.decodeFile(filename, options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null)
+                throw e;
+            Log.w(TAG, "can't reuse bitmap, " + e.getMessage());
+            BitmapPool.getInstance().put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(filename, options);
+        }
     }
 
     private String getCachePath(URL url) {
         return getCachePath(getContext(), url);
     }
 
+    /**
+     * Path of the file in {@link ImageDiskCache} for given url, which may not exist.
+     */
     public static String getCachePath(Context context, URL url) {
-        // prefer public dir, so can share with other apps
-        File dir = context.getExternalCacheDir();
-        if (dir == null)
-            dir = context.getFilesDir().getAbsoluteFile();
-        return dir + "/" + url.getFile().replace('/', '-');
+        return ImageDiskCache.getInstance(context).getFile(ImageDiskCache.keyOf(url)).getPath();
     }
 
-    private void deleteCacheFiles() {
-        Log.d(TAG, "deleteCacheFiles");
-        for (String path : cachedFiles) {
-            new File(path).delete();
-        }
-        cachedFiles.clear();
+    /**
+     * Bring the view back to its initial state, so it can be reused for another image,
+     * e.g. by a pager adapter. The loading is cancelled and the bitmaps given back.
+     */
+    public void reset() {
+        cancelLoading();
+        loadTask = null;
+        recycleBmp();
+        mImageView.clearImage();
+        mImageView.setPrimary(false);
+        mImageView.touchEnabled = true;
+        mImageView.setVisibility(GONE);
+        mProgressBar.setProgress(0);
+        mProgressBar.setVisibility(VISIBLE);
     }
 
+    /** Give back the bitmap being shown, including the download preview and tiles. */
     public void recycleBmp() {
+        mImageView.releaseTiles();
         if (mBmp != null) {
             --bmpCnt;
             Log.i(TAG, "recycle bmp, " + mBmp.getWidth() + "x" + mBmp.getHeight() + ", bmp cnt = " + bmpCnt);
-            mBmp.recycle();
+            // other views may be showing the same bitmap
+            BitmapMemoryCache.getInstance().release(mBmp);
             mBmp = null;
+            mBmpKey = null;
+        }
+        mBmpUrl = null;
+        mMetadata = null;
+        if (mRegionDecoder != null) {
+            // reopened if shown again
+            mRegionDecoder.close();
+            mRegionDecoder = null;
+        }
+        if (mPreviewBmp != null) {
+            BitmapMemoryCache.getInstance().release(mPreviewBmp);
+            mPreviewBmp = null;
         }
-    }
-
-    @Override
-    protected void finalize() throws Throwable {
-        deleteCacheFiles();
-        super.finalize();
     }
 }
@@ -37,6 +37,13 @@ public class WrapMotionEvent {
         }
     }
 
+    /**
+     * Wrap another event, so one wrapper is reused for all the events of a view.
+     */
+    public void setEvent(MotionEvent event) {
+        this.event = event;
+    }
+
 
 
     public int getAction() {
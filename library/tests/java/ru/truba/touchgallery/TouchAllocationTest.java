@@ -0,0 +1,128 @@
+package ru.truba.touchgallery;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.view.InputDevice;
+import android.view.MotionEvent;
+import android.view.View;
+import ru.truba.touchgallery.GalleryWidget.GalleryViewPager;
+import ru.truba.touchgallery.TouchView.TouchImageView;
+
+/**
+ * Steady state touch moves, dragging and pinching, must not allocate anything, see
+ * the reused events and points of {@link TouchImageView} and {@link GalleryViewPager}.
+ */
+public class TouchAllocationTest extends InstrumentationTestCase {
+    private static final int VIEW_WIDTH = 480, VIEW_HEIGHT = 800;
+    /** Moves before counting, so lazy initializations are done. */
+    private static final int WARM_UP_MOVES = 10;
+    private static final int COUNTED_MOVES = 50;
+
+    private GalleryViewPager pager;
+    private TouchImageView imageView;
+    private int allocCount;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                Context context = getInstrumentation().getTargetContext();
+                imageView = new TouchImageView(context);
+                imageView.setImageBitmap(Bitmap.createBitmap(VIEW_WIDTH * 2, VIEW_HEIGHT * 2, Bitmap.Config.RGB_565));
+                imageView.measure(View.MeasureSpec.makeMeasureSpec(VIEW_WIDTH, View.MeasureSpec.EXACTLY),
+                        View.MeasureSpec.makeMeasureSpec(VIEW_HEIGHT, View.MeasureSpec.EXACTLY));
+                imageView.layout(0, 0, VIEW_WIDTH, VIEW_HEIGHT);
+                pager = new GalleryViewPager(context);
+                pager.mCurrentView = imageView;
+            }
+        });
+    }
+
+    public void testDragDoesNotAllocate() {
+        long downTime = 0;
+        final MotionEvent[] events = new MotionEvent[1 + WARM_UP_MOVES + COUNTED_MOVES];
+        events[0] = MotionEvent.obtain(downTime, downTime, MotionEvent.ACTION_DOWN, 100, 100, 0);
+        for (int i = 1; i < events.length; ++i) {
+            events[i] = MotionEvent.obtain(downTime, downTime + i * 16, MotionEvent.ACTION_MOVE,
+                    100 + i * 3, 100 + i * 2, 0);
+        }
+        assertEquals(0, countAllocations(events, 1 + WARM_UP_MOVES));
+        recycle(events);
+    }
+
+    public void testPinchDoesNotAllocate() {
+        // multi-pointer events can't be made before
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+            return;
+        long downTime = 0;
+        final MotionEvent[] events = new MotionEvent[2 + WARM_UP_MOVES + COUNTED_MOVES];
+        events[0] = MotionEvent.obtain(downTime, downTime, MotionEvent.ACTION_DOWN, 200, 400, 0);
+        events[1] = twoPointerEvent(downTime, downTime,
+                MotionEvent.ACTION_POINTER_DOWN | (1 << MotionEvent.ACTION_POINTER_INDEX_SHIFT), 0);
+        for (int i = 2; i < events.length; ++i) {
+            // fingers moving apart
+            events[i] = twoPointerEvent(downTime, downTime + i * 16, MotionEvent.ACTION_MOVE, i * 4);
+        }
+        assertEquals(0, countAllocations(events, 2 + WARM_UP_MOVES));
+        recycle(events);
+    }
+
+    /**
+     * Feed the events on the UI thread as the pager and the page get them.
+     * @return allocations of the events from the given index.
+     */
+    private int countAllocations(final MotionEvent[] events, final int countFrom) {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < countFrom; ++i) {
+                    feed(events[i]);
+                }
+                Debug.resetThreadAllocCount();
+                Debug.startAllocCounting();
+                for (int i = countFrom; i < events.length; ++i) {
+                    feed(events[i]);
+                }
+                Debug.stopAllocCounting();
+                allocCount = Debug.getThreadAllocCount();
+            }
+        });
+        return allocCount;
+    }
+
+    private void feed(MotionEvent event) {
+        pager.onInterceptTouchEvent(event);
+        pager.onTouchEvent(event);
+        imageView.dispatchTouchEvent(event);
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static MotionEvent twoPointerEvent(long downTime, long eventTime, int action, float spread) {
+        MotionEvent.PointerProperties[] properties = new MotionEvent.PointerProperties[2];
+        MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[2];
+        for (int i = 0; i < 2; ++i) {
+            properties[i] = new MotionEvent.PointerProperties();
+            properties[i].id = i;
+            properties[i].toolType = MotionEvent.TOOL_TYPE_FINGER;
+            coords[i] = new MotionEvent.PointerCoords();
+            coords[i].x = 200 + (i == 0 ? -spread : 100 + spread);
+            coords[i].y = 400;
+            coords[i].pressure = 1;
+            coords[i].size = 1;
+        }
+        return MotionEvent.obtain(downTime, eventTime, action, 2, properties, coords,
+                0, 0, 1, 1, 0, 0, InputDevice.SOURCE_TOUCHSCREEN, 0);
+    }
+
+    private static void recycle(MotionEvent[] events) {
+        for (MotionEvent event : events) {
+            event.recycle();
+        }
+    }
+}